@@ -1,18 +1,44 @@
 package org.keedio.flume.source.watchdir;
 
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventSourceListener;
+import org.keedio.flume.source.watchdir.util.InodeResolver;
 import org.keedio.flume.source.watchdir.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Stops observing the files that do not exist anymore.
+ * <p>
+ * The delete events of the observer drive the removal: a deleted file is forgotten once the grace
+ * time has passed, if it was not renamed meanwhile and its path does not have the same inode. The
+ * grace time lets the create event of a rename arrive and the pending lines be read. The files are
+ * forgotten in order with the readings of their inodes, after the ones already submitted.
+ * <p>
+ * Files whose delete event was lost are found by an optional sweep of every observed file. The
+ * sweep works on a copy of the entries and checks them in batches without holding the lock of the
+ * map, the lock is only taken to remove the files of a batch that do not exist.
+ */
 public class CleanRemovedEventsProcessingThread implements Runnable {
 
+    // Ficheros comprobados cada vez que se toma el lock del mapa durante el barrido
+    private static final int SWEEP_BATCH = 500;
+
     private FileEventSourceListener listener;
-    private int seconds;
+    private long graceMillis;
+    private long sweepMillis;
+    private final DelayQueue<DeletedFile> deleted = new DelayQueue<DeletedFile>();
     private static final Logger LOGGER = LoggerFactory
             .getLogger(CleanRemovedEventsProcessingThread.class);
 
@@ -20,27 +46,47 @@ public class CleanRemovedEventsProcessingThread implements Runnable {
         return processedEvents;
     }
 
-    private int processedEvents = 0;
+    private volatile int processedEvents = 0;
 
-    public CleanRemovedEventsProcessingThread(FileEventSourceListener listener, int seconds) {
+    /**
+     * @param graceMillis time a deleted file is still observed after its delete event
+     * @param sweepMillis time between sweeps of every observed file, 0 disables them
+     */
+    public CleanRemovedEventsProcessingThread(FileEventSourceListener listener, long graceMillis, long sweepMillis) {
         this.listener = listener;
-        this.seconds = seconds;
-        
-        cleanObservedFilesDifferentInode(listener.getFilesObserved());
+        this.graceMillis = graceMillis;
+        this.sweepMillis = sweepMillis;
+
+        cleanObservedFilesDifferentInode(listener);
+    }
+
+    /**
+     * A file was deleted.
+     * @param inode identifier the path had, null if it is unknown
+     */
+    public void fileDeleted(String path, String inode) {
+        deleted.add(new DeletedFile(path, inode, System.currentTimeMillis() + graceMillis));
     }
 
     @Override
     public void run() {
+        long nextSweep = sweepMillis > 0 ? System.currentTimeMillis() + sweepMillis : Long.MAX_VALUE;
 
         while (true) {
             try {
-                Map<String, InodeInfo> inodes = listener.getFilesObserved();
-                
-                synchronized (inodes){
-                    process(inodes);
+                // Se espera al siguiente fichero borrado o al siguiente barrido
+                DeletedFile first = deleted.poll(nextSweep - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    List<DeletedFile> files = new ArrayList<DeletedFile>();
+                    files.add(first);
+                    deleted.drainTo(files);
+                    process(files);
+                }
+
+                if (System.currentTimeMillis() >= nextSweep) {
+                    sweep();
+                    nextSweep = System.currentTimeMillis() + sweepMillis;
                 }
-                
-                Thread.sleep(seconds * 1000);
             } catch (InterruptedException e) {
                 LOGGER.debug("CleanRemovedEventsProcessingThread interrupted, exiting",e);
                 break;
@@ -50,56 +96,183 @@ public class CleanRemovedEventsProcessingThread implements Runnable {
         }
     }
 
-    private void process(Map<String, InodeInfo> inodes) throws Exception {
-        LOGGER.debug("Processing ");
-        for (String inodeKey : inodes.keySet()) {
+    /**
+     * Forgets the deleted files whose grace time has passed.
+     * @return number of files forgotten
+     */
+    public int processDeleted() {
+        List<DeletedFile> files = new ArrayList<DeletedFile>();
+        deleted.drainTo(files);
+        return process(files);
+    }
 
-            try {
-                InodeInfo inode = inodes.get(inodeKey);
-                File file = new File(inode.getFileName());
-                if (!file.exists()) {
-                    LOGGER.info("Removing inodekey '" + inodeKey + "' associated with file '" + file.getAbsolutePath() + "'");
-                    inodes.remove(inodeKey);
+    private int process(List<DeletedFile> files) {
+        LOGGER.debug("Processing " + files.size() + " deleted files");
+        Map<String, InodeInfo> inodes = listener.getFilesObserved();
+        int removed = 0;
+        Set<String> unresolved = new HashSet<String>();
+
+        for (DeletedFile file : files) {
+            if (file.inode == null) {
+                unresolved.add(file.path);
+                continue;
+            }
+            InodeInfo info = inodes.get(file.inode);
+            // Si se ha renombrado el inodo tiene otra ruta
+            if (info != null && file.path.equals(info.getFileName()) && removeIfMissing(file.inode, info)) {
+                removed++;
+            }
+        }
+
+        // Rutas que no estaban en la cache del resolver, se buscan con una sola pasada
+        if (!unresolved.isEmpty()) {
+            for (Map.Entry<String, InodeInfo> entry : snapshot(inodes)) {
+                if (unresolved.contains(entry.getValue().getFileName()) && removeIfMissing(entry.getKey(), entry.getValue())) {
+                    removed++;
                 }
-                
-            } catch (Exception e) {
-                LOGGER.info("Error procesando el listener", e);
             }
         }
+        return removed;
     }
-    
-    public static void cleanObservedFilesDifferentInode(Map<String, InodeInfo> inodes){
+
+    private boolean removeIfMissing(String inode, InodeInfo info) {
+        String current;
+        try {
+            current = InodeResolver.read(info.getFileName()).getInodeKey();
+        } catch (WatchDirException e) {
+            current = null;
+        }
+        if (current != null && InodeTable.sameInode(current, inode)) {
+            return false;
+        }
+
+        LOGGER.info("Removing inodekey '" + inode + "' associated with file '" + info.getFileName() + "'");
+        listener.forgetRemovedInode(inode, info);
+        processedEvents++;
+        return true;
+    }
+
+    /**
+     * Forgets every observed file that does not exist.
+     * @return number of files forgotten
+     */
+    public int sweep() {
+        LOGGER.debug("Sweeping observed files");
+        Map<String, InodeInfo> inodes = listener.getFilesObserved();
+        List<Map.Entry<String, InodeInfo>> entries = snapshot(inodes);
+        List<Map.Entry<String, InodeInfo>> missing = new ArrayList<Map.Entry<String, InodeInfo>>();
+        int removed = 0;
+
+        for (int from = 0; from < entries.size(); from += SWEEP_BATCH) {
+            missing.clear();
+            for (Map.Entry<String, InodeInfo> entry : entries.subList(from, Math.min(from + SWEEP_BATCH, entries.size()))) {
+                if (!new File(entry.getValue().getFileName()).exists()) {
+                    missing.add(entry);
+                }
+            }
+            if (missing.isEmpty()) {
+                continue;
+            }
+
+            synchronized (inodes) {
+                for (Map.Entry<String, InodeInfo> entry : missing) {
+                    LOGGER.info("Removing inodekey '" + entry.getKey() + "' associated with file '" + entry.getValue().getFileName() + "'");
+                    listener.forgetRemovedInode(entry.getKey(), entry.getValue());
+                    processedEvents++;
+                    removed++;
+                }
+            }
+        }
+
+        // Files no longer observed do not need their channels open, neither the ones not read since the last sweep
+        if (listener.getHelper() != null) {
+            listener.getHelper().retainInodes(snapshotKeys(inodes));
+            if (sweepMillis > 0) {
+                listener.getHelper().closeIdleFiles(sweepMillis);
+            }
+        }
+        return removed;
+    }
+
+    private static List<Map.Entry<String, InodeInfo>> snapshot(Map<String, InodeInfo> inodes) {
+        synchronized (inodes) {
+            return new ArrayList<Map.Entry<String, InodeInfo>>(inodes.entrySet());
+        }
+    }
+
+    private static Set<String> snapshotKeys(Map<String, InodeInfo> inodes) {
+        synchronized (inodes) {
+            return new HashSet<String>(inodes.keySet());
+        }
+    }
+
+    /**
+     * Forgets the observed files restored from the checkpoint that do not exist or have another
+     * inode. They are removed through the listener, so the removal is recorded in the journal and
+     * reaches the checkpoint.
+     */
+    public static void cleanObservedFilesDifferentInode(FileEventSourceListener listener){
+        Map<String, InodeInfo> inodes = listener.getFilesObserved();
         synchronized (inodes){
+            List<Map.Entry<String, InodeInfo>> stale = new ArrayList<Map.Entry<String, InodeInfo>>();
             for (Iterator<Map.Entry<String, InodeInfo>> iter = inodes.entrySet().iterator(); iter.hasNext();){
-                String inodeKey = iter.next().getKey();
-                
+                Map.Entry<String, InodeInfo> entry = iter.next();
+                String inodeKey = entry.getKey();
+
                 try {
-                    InodeInfo inode = inodes.get(inodeKey);
+                    InodeInfo inode = entry.getValue();
 
                     File file = new File(inode.getFileName());
                     if (!file.exists()) {
                         LOGGER.info("Removing inodekey '" + inodeKey + "' associated with file '" + file.getAbsolutePath() + "'");
-                        iter.remove();
+                        stale.add(new AbstractMap.SimpleImmutableEntry<String, InodeInfo>(inodeKey, inode));
                     } else {
 
                         String inodeNumber = null;
                         try {
-                            inodeNumber = Util.getInodeID(inode.getFileName());
-                            if (inodeNumber != null && !inodeNumber.equals(inodeKey)) {
+                            inodeNumber = Util.getInodeKey(inode.getFileName());
+                            if (inodeNumber != null && !InodeTable.sameInode(inodeNumber, inodeKey)) {
                                 LOGGER.info("Removing inodekey '" + inodeKey + "', inodeNumber '" + inodeNumber + "' does not match inode number for observed file '" + file.getAbsolutePath() + "'");
-                                iter.remove();
+                                stale.add(new AbstractMap.SimpleImmutableEntry<String, InodeInfo>(inodeKey, inode));
                             }
                         } catch (WatchDirException e) {
                             // ignore exception
                         }
-                        
+
                     }
 
                 } catch (Exception e) {
                     LOGGER.info("Error procesando el listener", e);
                 }
             }
+
+            // Fuera del recorrido: forgetInode modifica el mapa
+            for (Map.Entry<String, InodeInfo> entry : stale) {
+                listener.forgetInode(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static final class DeletedFile implements Delayed {
+        final String path;
+        final String inode;
+        final long due;
+
+        DeletedFile(String path, String inode, long due) {
+            this.path = path;
+            this.inode = inode;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(due, ((DeletedFile) o).due);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,121 @@
+package org.keedio.flume.source.watchdir;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listener placed between the observers and the source that collapses the ENTRY_MODIFY events
+ * of a file. The first modification of a path waits the debounce window and the modifications
+ * received meanwhile are discarded, so a file written continuously is read once per window
+ * instead of once per write.
+ * <p>
+ * Any other event of a path delivers its pending modification first, so the order of the
+ * events of a file is kept.
+ *
+ */
+public class CoalescingWatchDirListener implements WatchDirListener {
+
+	private static final Logger LOGGER= LoggerFactory
+			.getLogger(CoalescingWatchDirListener.class);
+	private static final String ENTRY_MODIFY = "ENTRY_MODIFY";
+
+	private final WatchDirListener delegate;
+	private final long debounceMillis;
+	private final ScheduledExecutorService scheduler;
+	private final Map<String, WatchDirEvent> pending;
+	private final AtomicLong coalesced = new AtomicLong();
+
+	public CoalescingWatchDirListener(WatchDirListener delegate, long debounceMillis) {
+		this.delegate = delegate;
+		this.debounceMillis = debounceMillis;
+		this.pending = new HashMap<String, WatchDirEvent>();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CoalescingWatchDirListener");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public WatchDirListener getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Number of ENTRY_MODIFY events discarded because a previous one of the same path was pending.
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	@Override
+	public void process(WatchDirEvent event) throws WatchDirException {
+		final String path = event.getPath();
+
+		if (ENTRY_MODIFY.equals(event.getType())) {
+			synchronized (pending) {
+				if (pending.containsKey(path)) {
+					coalesced.incrementAndGet();
+					return;
+				}
+				pending.put(path, event);
+			}
+
+			try {
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						deliverPending(path);
+					}
+				}, debounceMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Detenido, se entrega directamente
+				deliverPending(path);
+			}
+		} else {
+			synchronized (this) {
+				deliverPending(path);
+				delegate.process(event);
+			}
+		}
+	}
+
+	private synchronized void deliverPending(String path) {
+		WatchDirEvent event;
+		synchronized (pending) {
+			event = pending.remove(path);
+		}
+		if (event == null) {
+			return;
+		}
+
+		try {
+			delegate.process(event);
+		} catch (Exception e) {
+			LOGGER.info("Error procesando el listener", e);
+		}
+	}
+
+	/**
+	 * Stops the scheduler. The pending modifications are discarded, the files will be read
+	 * from the saved positions on the next start.
+	 */
+	public void close() {
+		scheduler.shutdownNow();
+		synchronized (pending) {
+			pending.clear();
+		}
+	}
+
+}
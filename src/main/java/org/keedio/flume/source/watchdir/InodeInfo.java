@@ -1,28 +1,196 @@
 package org.keedio.flume.source.watchdir;
 
 import java.io.Serializable;
+import java.nio.charset.Charset;
 
 /**
  * Created by rolmo on 17/12/15.
  */
 public class InodeInfo implements Serializable {
 
+    // Same value the JVM computed for the original class, so old .ser files can still be read
+    private static final long serialVersionUID = -3873010687534660358L;
+
     private String fileName;
-    private Long position;
+    // Posicion hasta la que se ha leido el fichero
+    private volatile Long position;
+    // Posicion hasta la que los eventos se han entregado al canal, es la que se guarda en el checkpoint
+    private volatile Long committedPosition;
+
+    // Positions written by older versions are line counts; new ones are byte offsets.
+    // Deserialized old instances get false here and are migrated on first read.
+    private boolean byteOffset;
+
+    // Huella (CRC32) de los primeros bytes del fichero y numero de bytes que cubre, 0 si no se ha calculado.
+    // Distingue el fichero de otro que reutilice el inodo o del mismo fichero truncado y escrito de nuevo.
+    private long fingerprint;
+    private int fingerprintLength;
+
+    // Charset of the file content, it comes from the configuration of the directory
+    private transient Charset charset;
+
+    // Eventos leidos del fichero que todavia no se han entregado al canal
+    private transient int inFlight;
+    // Posicion a la que se vuelve a leer tras perder eventos, y generacion de los eventos que cuentan para el commit
+    private transient Long rewindTo;
+    private transient int epoch;
+    // El inodo ya no se observa, no se guardan mas posiciones suyas
+    private transient boolean removed;
 
     public InodeInfo(Long position, String fileName) {
         this.position = position;
+        this.committedPosition = position;
         this.fileName = fileName;
+        this.byteOffset = true;
     }
 
+    /**
+     * @return byte offset of the first unread byte (or the number of lines already read when
+     * {@link #isByteOffset()} is false)
+     */
     public Long getPosition() {
         return position;
     }
 
+    /**
+     * Sets the position already read. The events read are not delivered yet, the position saved in
+     * the checkpoint is {@link #getCommittedPosition()}.
+     */
     public void setPosition(Long position) {
         this.position = position;
     }
 
+    /**
+     * @return byte offset up to which the events of the file have been delivered to the channel,
+     * a restart reads the file again from here
+     */
+    public Long getCommittedPosition() {
+        // Instancias de versiones anteriores no tienen posicion confirmada
+        return committedPosition == null ? position : committedPosition;
+    }
+
+    public void setCommittedPosition(Long committedPosition) {
+        this.committedPosition = committedPosition;
+    }
+
+    /**
+     * An event read from the file has been added to the buffer.
+     */
+    public synchronized void eventRead() {
+        inFlight++;
+    }
+
+    /**
+     * An event of the file has been delivered to the channel.
+     * @param offset	position of the file after the line of the event
+     * @param epoch		{@link #getEpoch()} when the line was read
+     * @return true if the committed position moved
+     */
+    public synchronized boolean eventCommitted(long offset, int epoch) {
+        inFlight--;
+        // Los eventos leidos antes de volver atras se leen otra vez, no confirman nada
+        if (rewindTo != null || epoch != this.epoch || offset <= getCommittedPosition()) {
+            return false;
+        }
+        committedPosition = offset;
+        return true;
+    }
+
+    /**
+     * An event of the file has been discarded without being delivered, the file has to be read
+     * again from the committed position.
+     */
+    public synchronized void eventLost() {
+        inFlight--;
+        if (rewindTo == null) {
+            rewindTo = getCommittedPosition();
+        }
+    }
+
+    /**
+     * Confirms the position read when there are no events of the file waiting to be delivered,
+     * the lines read after the last event did not generate events (discarded lines).
+     * @return true if the committed position moved
+     */
+    public synchronized boolean commitRead() {
+        if (inFlight > 0 || rewindTo != null || position == null || position <= getCommittedPosition()) {
+            return false;
+        }
+        committedPosition = position;
+        return true;
+    }
+
+    /**
+     * Moves the position read back to the committed one if events of the file were lost.
+     * @return true if the position moved back
+     */
+    public synchronized boolean rewind() {
+        if (rewindTo == null) {
+            return false;
+        }
+        position = rewindTo;
+        rewindTo = null;
+        epoch++;
+        return true;
+    }
+
+    /**
+     * The file is not the one read until now (truncated or replaced), it is read again from the
+     * beginning. The events read before do not move the committed position anymore.
+     */
+    public synchronized void restart() {
+        position = 0L;
+        committedPosition = 0L;
+        rewindTo = null;
+        epoch++;
+        fingerprint = 0;
+        fingerprintLength = 0;
+    }
+
+    public synchronized long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return number of bytes at the beginning of the file covered by the fingerprint, 0 if none
+     */
+    public synchronized int getFingerprintLength() {
+        return fingerprintLength;
+    }
+
+    public synchronized void setFingerprint(long fingerprint, int fingerprintLength) {
+        this.fingerprint = fingerprint;
+        this.fingerprintLength = fingerprintLength;
+    }
+
+    public synchronized int getEpoch() {
+        return epoch;
+    }
+
+    public synchronized boolean isRemoved() {
+        return removed;
+    }
+
+    public synchronized void setRemoved(boolean removed) {
+        this.removed = removed;
+    }
+
+    public boolean isByteOffset() {
+        return byteOffset;
+    }
+
+    public void setByteOffset(boolean byteOffset) {
+        this.byteOffset = byteOffset;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -32,7 +200,7 @@ public class InodeInfo implements Serializable {
     }
 
     public String toString() {
-      return "{\"position\": " + position + ", \"filename\": " + fileName + "}";
+      return "{\"position\": " + position + ", \"committed\": " + getCommittedPosition() + ", \"filename\": " + fileName + "}";
       
     }
     
@@ -0,0 +1,395 @@
+package org.keedio.flume.source.watchdir;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Observed files keyed by device and inode. The keys are kept in primitive arrays with open
+ * addressing (linear probing), so an entry costs two longs and a reference instead of a String
+ * key and a map node. The {@link InodeInfo} of each entry is the mutable slot with the positions,
+ * they are updated in place without touching the table.
+ * <p>
+ * The rest of the source identifies the files by the String returned by {@link #id(long, long)}
+ * ("dev:ino", or only the inode when the device is unknown), the table also works as a Map with
+ * those keys. Entries without device (checkpoints of older versions) are found by inode alone and
+ * take the device of the first lookup that finds them. A put with device replaces the entry
+ * without device of the same inode, the file is not observed twice.
+ * <p>
+ * Every method is synchronized on the table. Iterating the Map views works on a copy of the
+ * entries, the table can be modified while iterating them.
+ */
+public class InodeTable extends AbstractMap<String, InodeInfo> {
+
+    /**
+     * Receives the entries of the table, see {@link InodeTable#forEach(Visitor)}.
+     */
+    public interface Visitor {
+        void visit(long dev, long ino, InodeInfo info);
+    }
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] devs;
+    private long[] inos;
+    private InodeInfo[] infos;
+    private int size;
+    private int resizeAt;
+
+    public InodeTable() {
+        this(MIN_CAPACITY);
+    }
+
+    public InodeTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 2 / 3 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return identifier of a file in the rest of the source
+     */
+    public static String id(long dev, long ino) {
+        return dev == 0 ? Long.toString(ino) : dev + ":" + ino;
+    }
+
+    /**
+     * @return device of an identifier returned by {@link #id(long, long)}, 0 if it has none
+     * @throws NumberFormatException if it is not an identifier
+     */
+    public static long dev(String id) {
+        int colon = id.indexOf(':');
+        return colon < 0 ? 0 : parseLong(id, 0, colon);
+    }
+
+    /**
+     * @return inode of an identifier returned by {@link #id(long, long)}
+     * @throws NumberFormatException if it is not an identifier
+     */
+    public static long ino(String id) {
+        return parseLong(id, id.indexOf(':') + 1, id.length());
+    }
+
+    /**
+     * @return true if both identifiers are the same file. An identifier without device is the
+     * same file as any other with its inode.
+     */
+    public static boolean sameInode(String id, String other) {
+        try {
+            long dev = dev(id);
+            long otherDev = dev(other);
+            return ino(id) == ino(other) && (dev == otherDev || dev == 0 || otherDev == 0);
+        } catch (NumberFormatException e) {
+            return id.equals(other);
+        }
+    }
+
+    // Sin substring, se parsea directamente sobre el String
+    private static long parseLong(String s, int start, int end) {
+        if (start >= end) {
+            throw new NumberFormatException("Not an inode: " + s);
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Not an inode: " + s);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int hash(long dev, long ino) {
+        long h = ino * 0x9E3779B97F4A7C15L + dev;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private void allocate(int capacity) {
+        devs = new long[capacity];
+        inos = new long[capacity];
+        infos = new InodeInfo[capacity];
+        resizeAt = capacity * 2 / 3;
+    }
+
+    private int slot(long dev, long ino) {
+        int mask = infos.length - 1;
+        int i = hash(dev, ino) & mask;
+        while (infos[i] != null) {
+            if (inos[i] == ino && devs[i] == dev) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    public synchronized InodeInfo get(long dev, long ino) {
+        int i = slot(dev, ino);
+        if (i >= 0) {
+            return infos[i];
+        }
+        if (dev != 0) {
+            // Entrada de un checkpoint sin dispositivo, se completa con el de este fichero
+            int legacy = slot(0, ino);
+            if (legacy >= 0) {
+                InodeInfo info = infos[legacy];
+                removeAt(legacy);
+                put(dev, ino, info);
+                return info;
+            }
+        }
+        return null;
+    }
+
+    public synchronized InodeInfo put(long dev, long ino, InodeInfo info) {
+        if (info == null) {
+            throw new NullPointerException("InodeInfo");
+        }
+        int i = slot(dev, ino);
+        if (i >= 0) {
+            InodeInfo previous = infos[i];
+            infos[i] = info;
+            return previous;
+        }
+        InodeInfo previous = null;
+        if (dev != 0) {
+            // Entrada de un checkpoint sin dispositivo (p.e. al aplicar el journal), se sustituye
+            int legacy = slot(0, ino);
+            if (legacy >= 0) {
+                previous = infos[legacy];
+                removeAt(legacy);
+                i = slot(dev, ino);
+            }
+        }
+        if (size >= resizeAt) {
+            resize();
+            i = slot(dev, ino);
+        }
+        i = -1 - i;
+        devs[i] = dev;
+        inos[i] = ino;
+        infos[i] = info;
+        size++;
+        return previous;
+    }
+
+    public synchronized InodeInfo remove(long dev, long ino) {
+        int i = slot(dev, ino);
+        if (i < 0 && dev != 0) {
+            i = slot(0, ino);
+        }
+        if (i < 0) {
+            return null;
+        }
+        InodeInfo previous = infos[i];
+        removeAt(i);
+        return previous;
+    }
+
+    /**
+     * Removes the entry with backward shift, the entries after it in the probe sequence are moved
+     * so lookups do not need tombstones.
+     */
+    private void removeAt(int i) {
+        int mask = infos.length - 1;
+        int hole = i;
+        int j = (i + 1) & mask;
+        while (infos[j] != null) {
+            int home = hash(devs[j], inos[j]) & mask;
+            // Se mueve si su posicion ideal no esta entre el hueco y j (circular)
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                devs[hole] = devs[j];
+                inos[hole] = inos[j];
+                infos[hole] = infos[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        infos[hole] = null;
+        devs[hole] = 0;
+        inos[hole] = 0;
+        size--;
+    }
+
+    private void resize() {
+        long[] oldDevs = devs;
+        long[] oldInos = inos;
+        InodeInfo[] oldInfos = infos;
+        allocate(oldInfos.length * 2);
+        for (int i = 0; i < oldInfos.length; i++) {
+            if (oldInfos[i] != null) {
+                int slot = -1 - slot(oldDevs[i], oldInos[i]);
+                devs[slot] = oldDevs[i];
+                inos[slot] = oldInos[i];
+                infos[slot] = oldInfos[i];
+            }
+        }
+    }
+
+    /**
+     * Visits every entry holding the lock of the table, without creating the String keys.
+     */
+    public synchronized void forEach(Visitor visitor) {
+        for (int i = 0; i < infos.length; i++) {
+            if (infos[i] != null) {
+                visitor.visit(devs[i], inos[i], infos[i]);
+            }
+        }
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    @Override
+    public InodeInfo get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        try {
+            return get(dev((String) key), ino((String) key));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public InodeInfo put(String key, InodeInfo info) {
+        return put(dev(key), ino(key), info);
+    }
+
+    @Override
+    public InodeInfo remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        try {
+            return remove(dev((String) key), ino((String) key));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, InodeInfo>> entrySet() {
+        final List<Map.Entry<String, InodeInfo>> entries;
+        synchronized (this) {
+            entries = new ArrayList<Map.Entry<String, InodeInfo>>(size);
+            for (int i = 0; i < infos.length; i++) {
+                if (infos[i] != null) {
+                    entries.add(new Entry(devs[i], inos[i], infos[i]));
+                }
+            }
+        }
+
+        return new AbstractSet<Map.Entry<String, InodeInfo>>() {
+            @Override
+            public Iterator<Map.Entry<String, InodeInfo>> iterator() {
+                return new Iterator<Map.Entry<String, InodeInfo>>() {
+                    private int next;
+                    private Entry last;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < entries.size();
+                    }
+
+                    @Override
+                    public Map.Entry<String, InodeInfo> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        last = (Entry) entries.get(next++);
+                        return last;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == null) {
+                            throw new IllegalStateException();
+                        }
+                        InodeTable.this.remove(last.dev, last.ino);
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+        };
+    }
+
+    private final class Entry implements Map.Entry<String, InodeInfo> {
+        private final long dev;
+        private final long ino;
+        private InodeInfo info;
+
+        Entry(long dev, long ino, InodeInfo info) {
+            this.dev = dev;
+            this.ino = ino;
+            this.info = info;
+        }
+
+        @Override
+        public String getKey() {
+            return id(dev, ino);
+        }
+
+        @Override
+        public InodeInfo getValue() {
+            return info;
+        }
+
+        @Override
+        public InodeInfo setValue(InodeInfo value) {
+            InodeInfo previous = info;
+            info = value;
+            put(dev, ino, value);
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return getKey().equals(e.getKey()) && info.equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ info.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + info;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.keedio.flume.source.watchdir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Observer that detects the changes of the directory by polling, for file systems where the
+ * watch service gets no events (NFS, some overlay file systems).
+ * <p>
+ * Every poll stats the known files of each directory and compares size, modification time and
+ * inode with the previous poll. The directory is only listed again when its modification time
+ * changes (files created, deleted or renamed). The interval between polls is the min interval
+ * while there are changes and doubles up to the max interval while there are none.
+ *
+ */
+public class PollingWatchDirObserver extends WatchDirObserver {
+
+	private static final Logger LOGGER= LoggerFactory
+			.getLogger(PollingWatchDirObserver.class);
+
+	// A directory modified this close to its last listing is listed again, its mtime could hide later changes
+	private static final long MTIME_GRANULARITY = 2000;
+
+	private final Map<Path, DirState> dirs;
+	private final long minInterval;
+	private final long maxInterval;
+	private final LinkOption[] linkOptions;
+
+	private static class FileState {
+		private long size;
+		private long mtime;
+		private Object key;
+
+		FileState(BasicFileAttributes attrs) {
+			update(attrs);
+		}
+
+		void update(BasicFileAttributes attrs) {
+			size = attrs.size();
+			mtime = attrs.lastModifiedTime().toMillis();
+			key = attrs.fileKey();
+		}
+	}
+
+	private static class DirState {
+		private long mtime = -1;
+		private long listedAt;
+		private Set<Path> subdirs = new HashSet<Path>();
+		private Map<Path, FileState> files = new HashMap<Path, FileState>();
+	}
+
+	public PollingWatchDirObserver(WatchDirFileSet set) {
+		super(set, false);
+		this.dirs = new HashMap<Path, DirState>();
+		this.minInterval = Math.max(1, set.getPollMinInterval());
+		this.maxInterval = Math.max(minInterval, set.getPollMaxInterval());
+		this.linkOptions = set.isFollowLinks() ? new LinkOption[0] : new LinkOption[]{LinkOption.NOFOLLOW_LINKS};
+		LOGGER.info("Monitorizando el directorio por polling: " + set.getPath());
+	}
+
+	@Override
+	public void run() {
+		if (getListeners().isEmpty()) {
+			LOGGER.error("No existen listeners. Finalizando");
+			return;
+		}
+
+		try {
+			processExistingFiles();
+
+			// Estado inicial, los ficheros existentes no generan eventos
+			try {
+				poll(false);
+			} catch (IOException e) {
+				LOGGER.error("No se puede monitorizar el directorio: " + getSet().getPath(), e);
+			}
+
+			long interval = minInterval;
+			for (;;) {
+				Thread.sleep(interval);
+				try {
+					boolean changes = poll(true);
+					interval = changes ? minInterval : Math.min(maxInterval, interval * 2);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					LOGGER.error("Error en bucle principal: " + e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			LOGGER.debug("Polling observer interrupted, exiting");
+		}
+	}
+
+	/**
+	 * Compares the directory tree with the previous poll and notifies the differences.
+	 * @param notify	false to only record the current state
+	 * @return true if there were changes
+	 */
+	protected boolean poll(boolean notify) throws IOException, InterruptedException {
+		List<WatchDirEvent> events = new ArrayList<WatchDirEvent>();
+		Set<Path> seen = new HashSet<Path>();
+
+		scan(Paths.get(getSet().getPath()), events, seen);
+
+		// Directorios que ya no existen
+		for (Iterator<Map.Entry<Path, DirState>> it = dirs.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Path, DirState> entry = it.next();
+			if (!seen.contains(entry.getKey())) {
+				for (Path file : entry.getValue().files.keySet()) {
+					events.add(new WatchDirEvent(file.toString(), "ENTRY_DELETE", getSet()));
+				}
+				it.remove();
+			}
+		}
+
+		if (notify) {
+			for (WatchDirEvent event : events) {
+				update(event);
+			}
+		}
+
+		return !events.isEmpty();
+	}
+
+	private void scan(Path dir, List<WatchDirEvent> events, Set<Path> seen) throws IOException {
+		if (!seen.add(dir)) {
+			return;
+		}
+
+		BasicFileAttributes dirAttrs;
+		try {
+			dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class, linkOptions);
+		} catch (NoSuchFileException e) {
+			seen.remove(dir);
+			return;
+		}
+
+		DirState state = dirs.get(dir);
+		if (state == null) {
+			state = new DirState();
+			dirs.put(dir, state);
+		}
+
+		long mtime = dirAttrs.lastModifiedTime().toMillis();
+		Set<Path> created = new HashSet<Path>();
+
+		if (state.mtime != mtime || state.listedAt - mtime < MTIME_GRANULARITY) {
+			state.listedAt = System.currentTimeMillis();
+			state.mtime = mtime;
+			list(dir, state, events, created);
+		}
+
+		// Ficheros conocidos: se comparan inodo, tamaño y fecha de modificacion
+		for (Iterator<Map.Entry<Path, FileState>> it = state.files.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Path, FileState> entry = it.next();
+			if (created.contains(entry.getKey())) {
+				continue;
+			}
+
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(entry.getKey(), BasicFileAttributes.class, linkOptions);
+			} catch (NoSuchFileException e) {
+				events.add(new WatchDirEvent(entry.getKey().toString(), "ENTRY_DELETE", getSet()));
+				it.remove();
+				continue;
+			}
+
+			FileState file = entry.getValue();
+			if (file.key != null && !file.key.equals(attrs.fileKey())) {
+				// Otro fichero con el mismo nombre (rotado)
+				events.add(new WatchDirEvent(entry.getKey().toString(), "ENTRY_CREATE", getSet()));
+			} else if (file.size != attrs.size() || file.mtime != attrs.lastModifiedTime().toMillis()) {
+				events.add(new WatchDirEvent(entry.getKey().toString(), "ENTRY_MODIFY", getSet()));
+			}
+			file.update(attrs);
+		}
+
+		for (Path subdir : new ArrayList<Path>(state.subdirs)) {
+			scan(subdir, events, seen);
+		}
+	}
+
+	/**
+	 * Lists the directory, notifying the files created and deleted since the last listing.
+	 */
+	private void list(Path dir, DirState state, List<WatchDirEvent> events, Set<Path> created) throws IOException {
+		Set<Path> present = new HashSet<Path>();
+		Set<Path> subdirs = new HashSet<Path>();
+
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for (Path entry : entries) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(entry, BasicFileAttributes.class, linkOptions);
+				} catch (NoSuchFileException e) {
+					continue;
+				}
+
+				if (attrs.isDirectory()) {
+					subdirs.add(entry);
+				} else if (attrs.isRegularFile()) {
+					present.add(entry);
+					if (!state.files.containsKey(entry)) {
+						state.files.put(entry, new FileState(attrs));
+						created.add(entry);
+						events.add(new WatchDirEvent(entry.toString(), "ENTRY_CREATE", getSet()));
+					}
+				}
+			}
+		}
+
+		for (Iterator<Path> it = state.files.keySet().iterator(); it.hasNext();) {
+			Path file = it.next();
+			if (!present.contains(file)) {
+				events.add(new WatchDirEvent(file.toString(), "ENTRY_DELETE", getSet()));
+				it.remove();
+			}
+		}
+		state.subdirs = subdirs;
+	}
+
+}
@@ -10,11 +10,21 @@ public class WatchDirEvent {
 	private String type;
 	private String path;
 	private WatchDirFileSet set;
+	private boolean rescan;
 	
 	public WatchDirEvent(String path, String type, WatchDirFileSet set) {
+		this(path, type, set, false);
+	}
+
+	/**
+	 * @param rescan true if the event comes from a rescan of the directory after events were lost,
+	 *               the file may have been there before
+	 */
+	public WatchDirEvent(String path, String type, WatchDirFileSet set, boolean rescan) {
 		this.type = type;
 		this.path = path;
 		this.set = set;
+		this.rescan = rescan;
 	}
 	
 	public String getType() {
@@ -40,5 +50,9 @@ public class WatchDirEvent {
 	public void setSet(WatchDirFileSet set) {
 		this.set = set;
 	}
+
+	public boolean isRescan() {
+		return rescan;
+	}
 	
 }
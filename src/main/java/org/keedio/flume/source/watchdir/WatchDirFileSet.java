@@ -1,6 +1,7 @@
 package org.keedio.flume.source.watchdir;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
@@ -10,10 +11,11 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import com.google.common.base.Preconditions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,28 +26,51 @@ import org.slf4j.LoggerFactory;
  * Tag level, level of tag expected to be in the xml files
  * Whitelist, files to monitorize
  * Blacklist, excluded files
+ * Charset, encoding of the files content (null for the default charset of the JVM)
+ * Observer, how changes are detected: watch service of the file system (watch) or polling (poll)
+ * Poll intervals, min and max milliseconds between polls when polling
  * 
  * @author rolmo
  *
  */
 public class WatchDirFileSet {
 	
+	public static final String OBSERVER_WATCH = "watch";
+	public static final String OBSERVER_POLL = "poll";
+	private static final String OBSERVER = "observer";
+	private static final String POLL_MIN_INTERVAL = "pollmininterval";
+	private static final String POLL_MAX_INTERVAL = "pollmaxinterval";
+	private static final int MAX_CACHED_DECISIONS = 10000;
+
 	private static final Logger LOGGER= LoggerFactory
 			.getLogger(WatchDirFileSet.class);
 	private String path;
 	private String whitelist;
 	private String blacklist;
+	private WatchDirPatterns whitelistPatterns;
+	private WatchDirPatterns blacklistPatterns;
+	// Decisiones de haveToProccess por path, las mas antiguas se descartan
+	private final Map<String, Boolean> decisions = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_CACHED_DECISIONS;
+		}
+	};
 	private Set<String> existingFiles;
 	private boolean readOnStartup;
 	private boolean followLinks;
+	private Charset charset;
+	private String observer = OBSERVER_WATCH;
+	private long pollMinInterval = 250;
+	private long pollMaxInterval = 5000;
 
 
 	public WatchDirFileSet(String path,
 			String whitelist, String blacklist, boolean readOnStartup, boolean followLinks) {
 		super();
 		this.path = path==null?"":path;
-		this.whitelist = whitelist==null?"":whitelist;
-		this.blacklist = blacklist==null?"":blacklist;
+		setWhitelist(whitelist==null?"":whitelist);
+		setBlacklist(blacklist==null?"":blacklist);
 		this.readOnStartup = readOnStartup;
 		this.followLinks = followLinks;
 
@@ -67,12 +92,16 @@ public class WatchDirFileSet {
 	}
 	public void setWhitelist(String whitelist) {
 		this.whitelist = whitelist;
+		this.whitelistPatterns = WatchDirPatterns.compile(whitelist);
+		clearDecisions();
 	}
 	public String getBlacklist() {
 		return blacklist;
 	}
 	public void setBlacklist(String blacklist) {
 		this.blacklist = blacklist;
+		this.blacklistPatterns = WatchDirPatterns.compile(blacklist);
+		clearDecisions();
 	}
 	public Set<String> getExistingFiles() {
 		return existingFiles;
@@ -89,16 +118,76 @@ public class WatchDirFileSet {
 	public boolean isFollowLinks() {
 		return followLinks;
 	}
+	public Charset getCharset() {
+		return charset;
+	}
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+	public String getObserver() {
+		return observer;
+	}
+	public void setObserver(String observer) {
+		this.observer = observer;
+	}
+	public long getPollMinInterval() {
+		return pollMinInterval;
+	}
+	public void setPollMinInterval(long pollMinInterval) {
+		this.pollMinInterval = pollMinInterval;
+	}
+	public long getPollMaxInterval() {
+		return pollMaxInterval;
+	}
+	public void setPollMaxInterval(long pollMaxInterval) {
+		this.pollMaxInterval = pollMaxInterval;
+	}
+
+	/**
+	 * Sets how the changes of the files are detected from the properties of the directory:
+	 * observer (watch or poll), pollmininterval and pollmaxinterval (milliseconds).
+	 *
+	 * @param props properties of the directory (dirs.N.*)
+	 */
+	public void configureObserver(Map<String, String> props) {
+		String observer = props.get(OBSERVER);
+		if (observer != null && !"".equals(observer)) {
+			Preconditions.checkArgument(OBSERVER_WATCH.equals(observer) || OBSERVER_POLL.equals(observer),
+					"Unknown observer " + observer + ", use " + OBSERVER_WATCH + " or " + OBSERVER_POLL);
+			this.observer = observer;
+		}
+		if (props.get(POLL_MIN_INTERVAL) != null) {
+			this.pollMinInterval = Long.parseLong(props.get(POLL_MIN_INTERVAL));
+		}
+		if (props.get(POLL_MAX_INTERVAL) != null) {
+			this.pollMaxInterval = Long.parseLong(props.get(POLL_MAX_INTERVAL));
+		}
+	}
 
 	/**
 	 * Given a file, checks if the file is in the whitelist, so have to proccess or in the blacklist
-	 * so have to discard.
+	 * so have to discard. The decision is cached by path, as the same files are checked on every event.
 	 *
 	 * @param file input file.
 	 * @return true if the given files has not been processed.
 	 *
 	 */
 	public boolean haveToProccess(String file){
+		synchronized (decisions) {
+			Boolean decision = decisions.get(file);
+			if (decision != null) {
+				return decision;
+			}
+		}
+
+		boolean decision = decide(file);
+		synchronized (decisions) {
+			decisions.put(file, decision);
+		}
+		return decision;
+	}
+
+	private boolean decide(String file){
 		// Los ficheros que finalizan con el sufijo (.finished por defecto) no se tratan
 		if (getWhitelist().isEmpty() && getBlacklist().isEmpty()){
 			// Si las dos listas estan vacias notificamos
@@ -107,37 +196,25 @@ public class WatchDirFileSet {
 		} else {
 			// En caso contrario
 			// Comprobamos si esta en la blacklist
-			if (!getWhitelist().isEmpty() && match(getWhitelist(), file)){
-				LOGGER.debug("Whitelisted. Go on. file: " + file);
+			if (!getWhitelist().isEmpty() && whitelistPatterns.matches(file)){
+				LOGGER.debug("Whitelisted. Go on. file: {}", file);
 				return true;        							//break;
-			} else if (!getBlacklist().isEmpty() && !match(getBlacklist(), file)) {
-				LOGGER.debug("Not in blacklisted. Go on. file: " + file);
+			} else if (!getBlacklist().isEmpty() && !blacklistPatterns.matches(file)) {
+				LOGGER.debug("Not in blacklisted. Go on. file: {}", file);
 				return true;
 			}
 		}
 
-		LOGGER.debug(file + " has been either blacklisted or not in the whitelist");
+		LOGGER.debug("{} has been either blacklisted or not in the whitelist", file);
 		return false;
 		
 	}
-	
-	private static boolean match(String patterns, String string) {
-    	
-    	String[] splitPat = patterns.split(",");
-    	boolean match = false;
-    	
-    	for (String pattern:splitPat) {
-        	Pattern pat = Pattern.compile(pattern + "$");
-        	Matcher mat = pat.matcher(string);
-        	
-        	match = match || mat.find();
-        	
-        	if (match) break;
-    	}
-    	
-    	
-    	return match;
-    }
+
+	private void clearDecisions() {
+		synchronized (decisions) {
+			decisions.clear();
+		}
+	}
 	
 	private void getFiles(String path) throws IOException {
 		
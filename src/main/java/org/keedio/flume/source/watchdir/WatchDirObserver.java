@@ -8,8 +8,6 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventSourceListener;
@@ -41,10 +39,22 @@ public class WatchDirObserver implements Runnable {
 	}
 	
     public WatchDirObserver(WatchDirFileSet set) {
+    	this(set, true);
+    }
+
+    /**
+     * @param set	Files to observe
+     * @param watch	false for observers that do not use the watch service of the file system
+     */
+    protected WatchDirObserver(WatchDirFileSet set, boolean watch) {
     	this.set = set;
     	keys = new HashMap<WatchKey, Path>();
     	listeners = new ArrayList<WatchDirListener>();
     	
+    	if (!watch) {
+    		return;
+    	}
+
 		try {
 			Path directotyToWatch = Paths.get(set.getPath());
 	        watcherSvc = FileSystems.getDefault().newWatchService();
@@ -55,6 +65,23 @@ public class WatchDirObserver implements Runnable {
 		}
     }
 
+    /**
+     * Creates the observer configured for the set: the watch service of the file system or
+     * polling (for file systems that do not notify changes, like NFS).
+     * @param set	Files to observe
+     * @return the observer, it has to be started in its own thread
+     */
+    public static WatchDirObserver newObserver(WatchDirFileSet set) {
+    	if (WatchDirFileSet.OBSERVER_POLL.equals(set.getObserver())) {
+    		return new PollingWatchDirObserver(set);
+    	}
+    	return new WatchDirObserver(set);
+    }
+
+    protected WatchDirFileSet getSet() {
+    	return set;
+    }
+
     static <T> WatchEvent<T> castEvent(WatchEvent<?> event) {
         return (WatchEvent<T>)event;
     }
@@ -73,10 +100,11 @@ public class WatchDirObserver implements Runnable {
 
     			//Check autocommit thread is running (Fix bug: when readonstartup is true the process begin before helper is built)
 
-    			String listenerClassName = listener.getClass().getName();
+    			WatchDirListener target = listener instanceof CoalescingWatchDirListener ? ((CoalescingWatchDirListener) listener).getDelegate() : listener;
+    			String listenerClassName = target.getClass().getName();
     			LOGGER.debug("Listener class name: " + listenerClassName);
 				if (listenerClassName.equals("org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventSourceListener")) {
-					FileEventSourceListener fileEventSourceListener = (FileEventSourceListener) listener;
+					FileEventSourceListener fileEventSourceListener = (FileEventSourceListener) target;
 					Thread.State autoCommitThreadState = fileEventSourceListener.getAutoCommitThread().getState();
 					LOGGER.debug("autoCommitThread state: " + autoCommitThreadState);
 					while (autoCommitThreadState.equals(Thread.State.NEW)) {
@@ -164,24 +192,24 @@ public class WatchDirObserver implements Runnable {
     			boolean fin = false;
     			
     			// En primer lugar procesamos todos los ficheros pre-existentes
-    			if (set.isReadOnStartup()) {
-        			for(String file:set.getExistingFiles()) {
-        				WatchDirEvent event = new WatchDirEvent(file, "ENTRY_CREATE", set);
-        				update(event);
-        				LOGGER.debug("Fichero existente anteriormente:" + file + " .Se procesa");
-        			}
-    			}
+    			processExistingFiles();
     			
     			for (;;) {
     			  
+    			  // wait for key to be signaled
+    			  WatchKey key = watcherSvc.take();
     			  try {
-              // wait for key to be signaled
-              WatchKey key;
-              key = watcherSvc.take();
               Path dir = keys.get(key);
 
               for (WatchEvent<?> event : key.pollEvents()) {
-                  WatchEvent<Path> ev = cast(event);
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                  // Se han perdido eventos, se revisa el directorio completo
+                  LOGGER.warn("Events lost in directory " + dir + ", rescanning it");
+                  rescan(dir);
+                  continue;
+                }
+
+                WatchEvent<Path> ev = cast(event);
                 Path name = ev.context();
                 Path path = dir.resolve(name);
                 
@@ -194,14 +222,15 @@ public class WatchDirObserver implements Runnable {
                 
               }
 
-              // reset key and remove from set if directory no longer
-              // accessible
-              key.reset();
-
               //Thread.sleep(1000);
     			    
+    			  } catch (InterruptedException e) {
+    			    throw e;
     			  } catch (Exception e) {
     			    LOGGER.error("Error en bucle principal: " + e.getMessage());
+    			  } finally {
+    			    // reset key, otherwise the directory would not be signaled again
+    			    key.reset();
     			  }
     			}
     		} catch (Exception e) {
@@ -210,22 +239,46 @@ public class WatchDirObserver implements Runnable {
     	}
 	}
     
-    public static boolean match(String patterns, String string) {
-    	
-    	String[] splitPat = patterns.split(",");
-    	boolean match = false;
-    	
-    	for (String pattern:splitPat) {
-        	Pattern pat = Pattern.compile(pattern + "$");
-        	Matcher mat = pat.matcher(string);
-        	
-        	match = match || mat.find();
-        	
-        	if (match) break;
+    /**
+     * Notifies the files existing on startup as created, if the set has to read them.
+     */
+    protected void processExistingFiles() throws InterruptedException {
+    	if (set.isReadOnStartup()) {
+    		for(String file:set.getExistingFiles()) {
+    			WatchDirEvent event = new WatchDirEvent(file, "ENTRY_CREATE", set);
+    			update(event);
+    			LOGGER.debug("Fichero existente anteriormente:" + file + " .Se procesa");
+    		}
     	}
-    	
-    	
-    	return match;
+    }
+
+    /**
+     * Notifies the files of a directory as created after an overflow of the watch service. The
+     * listeners discard the ones already observed that have not changed, and do not read the
+     * content the unknown ones already had unless the set reads on startup. New sub-directories are
+     * registered and rescanned too.
+     * @param dir	The directory to rescan
+     */
+    protected void rescan(Path dir) throws IOException, InterruptedException {
+    	if (dir == null) {
+    		return;
+    	}
+    	try (DirectoryStream<Path> entries = java.nio.file.Files.newDirectoryStream(dir)) {
+    		for (Path entry : entries) {
+    			if (java.nio.file.Files.isDirectory(entry, NOFOLLOW_LINKS)) {
+    				if (!keys.containsValue(entry)) {
+    					registerAll(entry);
+    					rescan(entry);
+    				}
+    			} else {
+    				update(new WatchDirEvent(entry.toString(), "ENTRY_CREATE", set, true));
+    			}
+    		}
+    	}
+    }
+
+    public static boolean match(String patterns, String string) {
+    	return WatchDirPatterns.compile(patterns).matches(string);
     }
 
 }
@@ -0,0 +1,119 @@
+package org.keedio.flume.source.watchdir;
+
+import java.util.regex.Pattern;
+
+/**
+ * List of comma separated regular expressions (whitelist or blacklist) compiled once. A path
+ * matches if any of the expressions is found at the end of it.
+ * <p>
+ * The expressions are joined in a single pattern, so a path is checked with one search. If
+ * any of them uses back references they are kept as separate patterns, joining them would
+ * change the number of the groups. They are kept separate too if any of them has an alternation
+ * outside groups: "a|b" is checked as "a|b$", only the last alternative is anchored.
+ *
+ */
+public final class WatchDirPatterns {
+
+	private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+	private static final WatchDirPatterns EMPTY = new WatchDirPatterns("", new Pattern[0]);
+
+	private final String patterns;
+	private final Pattern[] compiled;
+
+	private WatchDirPatterns(String patterns, Pattern[] compiled) {
+		this.patterns = patterns;
+		this.compiled = compiled;
+	}
+
+	/**
+	 * @param patterns	comma separated regular expressions, null or empty for none
+	 * @return the compiled expressions
+	 */
+	public static WatchDirPatterns compile(String patterns) {
+		if (patterns == null || patterns.isEmpty()) {
+			return EMPTY;
+		}
+
+		String[] splitPat = patterns.split(",");
+		boolean join = splitPat.length > 1;
+		for (String pattern : splitPat) {
+			join = join && !BACK_REFERENCE.matcher(pattern).find() && !hasTopLevelAlternation(pattern);
+		}
+
+		Pattern[] compiled;
+		if (join) {
+			StringBuilder sb = new StringBuilder();
+			for (String pattern : splitPat) {
+				if (sb.length() > 0) {
+					sb.append('|');
+				}
+				sb.append("(?:").append(pattern).append(")$");
+			}
+			compiled = new Pattern[]{Pattern.compile(sb.toString())};
+		} else {
+			compiled = new Pattern[splitPat.length];
+			for (int i = 0; i < splitPat.length; i++) {
+				compiled[i] = Pattern.compile(splitPat[i] + "$");
+			}
+		}
+
+		return new WatchDirPatterns(patterns, compiled);
+	}
+
+	/**
+	 * @return true if the expression has a '|' outside groups and character classes
+	 */
+	private static boolean hasTopLevelAlternation(String pattern) {
+		int depth = 0;
+		boolean inClass = false;
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '\\') {
+				if (i + 1 < pattern.length() && pattern.charAt(i + 1) == 'Q') {
+					// Texto literal hasta \E
+					int end = pattern.indexOf("\\E", i + 2);
+					i = end < 0 ? pattern.length() : end + 1;
+				} else {
+					i++;
+				}
+			} else if (inClass) {
+				inClass = c != ']';
+			} else if (c == '[') {
+				inClass = true;
+				// Un ']' al principio de la clase es literal
+				if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '^') {
+					i++;
+				}
+				if (i + 1 < pattern.length() && pattern.charAt(i + 1) == ']') {
+					i++;
+				}
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (c == '|' && depth == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean isEmpty() {
+		return compiled.length == 0;
+	}
+
+	public boolean matches(String path) {
+		for (Pattern pattern : compiled) {
+			if (pattern.matcher(path).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return patterns;
+	}
+
+}
@@ -1,44 +1,112 @@
 package org.keedio.flume.source.watchdir.listener.simpletxtsource;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
-
-import org.keedio.flume.source.watchdir.listener.xmlsource.WatchDirXMLWinEventSourceListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Sends the events read to the channel. Instead of sending every autocommittime, the thread waits
+ * on the helper until the first event is read and sends the buffer when the oldest event would
+ * exceed the max latency, or before if the flush target or batchBytes are reached.
+ * <p>
+ * The flush target (events per batch) adapts to the time the channel takes to commit: it is halved
+ * while commits take more than half the max latency, so an event does not wait for a long commit,
+ * and doubled up to eventsCapacity while full batches commit fast. The deadline is moved forward
+ * by the mean commit time, so the events are in the channel within the max latency.
+ */
 public class AutocommitThread implements Runnable {
 
+    private static final int MIN_FLUSH_TARGET = 16;
+
     private FileEventSourceListener listener;
-    private int seconds;
+    private long maxLatencyMillis;
+    private long idleMillis;
+    private long commitMillis;
+    private long lastCommit = System.currentTimeMillis();
     private static final Logger LOGGER = LoggerFactory
             .getLogger(AutocommitThread.class);
 
-    public AutocommitThread(FileEventSourceListener listener, int seconds) {
+    /**
+     * @param maxLatencyMillis max time since an event is read until it is sent to the channel
+     * @param idleMillis       time between sends of the pending multiline events when no event is read
+     */
+    public AutocommitThread(FileEventSourceListener listener, long maxLatencyMillis, long idleMillis) {
         this.listener = listener;
-        this.seconds = seconds;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.idleMillis = idleMillis;
     }
 
     @Override
     public void run() {
         while (true) {
             try {
-                listener.getHelper().commitPendings();
+                FileEventHelper helper = listener.getHelper();
+                long first = helper.getFirstEventTime();
+                long wait = untilCommit(helper, first, System.currentTimeMillis());
+                if (wait > 0) {
+                    helper.awaitFlush(first, wait);
+                    continue;
+                }
 
-                Thread.sleep(seconds);
+                boolean full = helper.getNewEvents() >= helper.getFlushTarget();
+                long start = System.currentTimeMillis();
+                helper.commitPendings();
+                lastCommit = System.currentTimeMillis();
+                adapt(helper, lastCommit - start, full);
             } catch (InterruptedException e){
                 LOGGER.debug("AutocommitThread interrupted. Exiting");
                 break;
-            } 
+            }
             catch (Exception e) {
                 LOGGER.debug("Error en autocommit... Esperando....");
+                try {
+                    Thread.sleep(maxLatencyMillis);
+                } catch (InterruptedException ie) {
+                    LOGGER.debug("AutocommitThread interrupted. Exiting");
+                    break;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * @return millis to wait until the next commit, 0 to commit now
+     */
+    long untilCommit(FileEventHelper helper, long first, long now) {
+        if (first == 0) {
+            // Sin eventos nuevos, los eventos multilinea pendientes se revisan cada autocommittime
+            if (helper.getBufferedEvents() > 0) {
+                return Math.max(0, lastCommit + idleMillis - now);
             }
+            return idleMillis;
         }
+        if (helper.getNewEvents() >= helper.getFlushTarget()
+                || (listener.batchBytes > 0 && helper.getNewBytes() >= listener.batchBytes)) {
+            return 0;
+        }
+        return Math.max(0, first + Math.max(0, maxLatencyMillis - commitMillis) - now);
+    }
+
+    void adapt(FileEventHelper helper, long elapsed, boolean full) {
+        // Media movil del tiempo de commit
+        commitMillis = (3 * commitMillis + elapsed) / 4;
+
+        int target = helper.getFlushTarget();
+        int maxTarget = Math.max(1, listener.eventsCapacity);
+        int minTarget = Math.min(MIN_FLUSH_TARGET, maxTarget);
+        if (commitMillis > maxLatencyMillis / 2 && target > minTarget) {
+            target = Math.max(minTarget, target / 2);
+        } else if (full && commitMillis < maxLatencyMillis / 8 && target < maxTarget) {
+            target = Math.min(maxTarget, target * 2);
+        } else {
+            return;
+        }
+        LOGGER.debug("Mean commit time " + commitMillis + " ms, batches of " + target + " events");
+        helper.setFlushTarget(target);
+    }
 
+    long getCommitMillis() {
+        return commitMillis;
     }
 
 }
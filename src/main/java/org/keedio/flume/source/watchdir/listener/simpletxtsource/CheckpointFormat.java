@@ -0,0 +1,248 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.InodeTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary format of the file with the positions of the observed files (pathtoser).
+ * <p>
+ * Layout, big endian:
+ * <pre>
+ * int   magic ("TDCP")
+ * int   version
+ * int   number of entries
+ * entry * number of entries:
+ *   long    device (0 if unknown)
+ *   long    inode
+ *   long    offset
+ *   boolean the offset is in bytes (false for line counts of old versions)
+ *   long    fingerprint of the first bytes of the file (0 if unknown)
+ *   int     number of bytes covered by the fingerprint (0 if unknown, not in version 1)
+ *   UTF     path
+ * long  CRC32 of everything above
+ * </pre>
+ * Files written with Java serialization by older versions are still read, they are written
+ * in this format on the next checkpoint. {@link #main(String[])} converts them offline.
+ */
+public final class CheckpointFormat {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointFormat.class);
+
+    static final int MAGIC = 0x54444350;
+    static final int VERSION = 2;
+
+    // Primeros bytes de un fichero escrito con ObjectOutputStream
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    private CheckpointFormat() {
+    }
+
+    /**
+     * Entry of the checkpoint, a copy of the values of an InodeInfo so the map lock is only
+     * held while copying.
+     */
+    static final class Entry {
+        final long dev;
+        final long ino;
+        final long offset;
+        final boolean byteOffset;
+        final long fingerprint;
+        final int fingerprintLength;
+        final String path;
+
+        Entry(long dev, long ino, long offset, boolean byteOffset, long fingerprint, int fingerprintLength, String path) {
+            this.dev = dev;
+            this.ino = ino;
+            this.offset = offset;
+            this.byteOffset = byteOffset;
+            this.fingerprint = fingerprint;
+            this.fingerprintLength = fingerprintLength;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Copies the entries of the map. Inodes that are not valid identifiers are skipped.
+     */
+    static List<Entry> snapshot(Map<String, InodeInfo> inodes) {
+        final List<Entry> entries = new ArrayList<Entry>(inodes.size());
+        if (inodes instanceof InodeTable) {
+            // Sin crear las claves String de cada entrada
+            ((InodeTable) inodes).forEach(new InodeTable.Visitor() {
+                @Override
+                public void visit(long dev, long ino, InodeInfo info) {
+                    entries.add(entry(dev, ino, info));
+                }
+            });
+            return entries;
+        }
+        for (Map.Entry<String, InodeInfo> e : inodes.entrySet()) {
+            try {
+                entries.add(entry(InodeTable.dev(e.getKey()), InodeTable.ino(e.getKey()), e.getValue()));
+            } catch (NumberFormatException ex) {
+                LOGGER.warn("Inode '" + e.getKey() + "' is not numeric, it is not saved");
+            }
+        }
+        return entries;
+    }
+
+    private static Entry entry(long dev, long ino, InodeInfo info) {
+        // Solo se guarda lo entregado al canal, al arrancar se vuelve a leer lo pendiente
+        synchronized (info) {
+            Long position = info.getCommittedPosition();
+            return new Entry(dev, ino, position == null ? 0L : position, info.isByteOffset(), info.getFingerprint(), info.getFingerprintLength(), info.getFileName());
+        }
+    }
+
+    static void write(List<Entry> entries, OutputStream out) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(out), new CRC32());
+        DataOutputStream data = new DataOutputStream(checked);
+
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(entries.size());
+        for (Entry entry : entries) {
+            data.writeLong(entry.dev);
+            data.writeLong(entry.ino);
+            data.writeLong(entry.offset);
+            data.writeBoolean(entry.byteOffset);
+            data.writeLong(entry.fingerprint);
+            data.writeInt(entry.fingerprintLength);
+            data.writeUTF(entry.path);
+        }
+        data.flush();
+
+        long crc = checked.getChecksum().getValue();
+        data.writeLong(crc);
+        data.flush();
+    }
+
+    /**
+     * Writes the map in this format.
+     */
+    public static void write(Map<String, InodeInfo> inodes, OutputStream out) throws IOException {
+        List<Entry> entries;
+        synchronized (inodes) {
+            entries = snapshot(inodes);
+        }
+        write(entries, out);
+    }
+
+    /**
+     * Reads a file written by {@link #write(Map, OutputStream)}.
+     */
+    public static InodeTable read(InputStream in) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in), new CRC32());
+        DataInputStream data = new DataInputStream(checked);
+
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a checkpoint file");
+        }
+        int version = data.readInt();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+
+        int count = data.readInt();
+        InodeTable inodes = new InodeTable(count);
+        for (int i = 0; i < count; i++) {
+            long dev = data.readLong();
+            long ino = data.readLong();
+            long offset = data.readLong();
+            boolean byteOffset = data.readBoolean();
+            long fingerprint = data.readLong();
+            int fingerprintLength = version == 1 ? 0 : data.readInt();
+            String path = data.readUTF();
+
+            InodeInfo info = new InodeInfo(offset, path);
+            info.setByteOffset(byteOffset);
+            info.setFingerprint(fingerprint, fingerprintLength);
+            inodes.put(dev, ino, info);
+        }
+
+        long expected = checked.getChecksum().getValue();
+        long crc;
+        try {
+            crc = data.readLong();
+        } catch (EOFException e) {
+            throw new IOException("Truncated checkpoint file");
+        }
+        if (crc != expected) {
+            throw new IOException("Corrupt checkpoint file, bad checksum");
+        }
+
+        return inodes;
+    }
+
+    /**
+     * @return true if the file was written with Java serialization by an older version
+     */
+    public static boolean isLegacy(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readUnsignedShort() == JAVA_SERIALIZATION_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a file written with Java serialization by older versions. The entries have no device.
+     */
+    @SuppressWarnings("unchecked")
+    public static InodeTable readLegacy(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+            Map<String, InodeInfo> legacy = (Map<String, InodeInfo>) ois.readObject();
+            InodeTable inodes = new InodeTable(legacy.size());
+            for (Map.Entry<String, InodeInfo> e : legacy.entrySet()) {
+                try {
+                    inodes.put(e.getKey(), e.getValue());
+                } catch (NumberFormatException ex) {
+                    LOGGER.warn("Inode '" + e.getKey() + "' is not numeric, it is ignored");
+                }
+            }
+            return inodes;
+        }
+    }
+
+    /**
+     * Converts a file written with Java serialization to this format.
+     */
+    public static void convert(File legacy, File target) throws IOException, ClassNotFoundException {
+        Map<String, InodeInfo> inodes = readLegacy(legacy);
+        try (OutputStream out = new FileOutputStream(target)) {
+            write(inodes, out);
+        }
+    }
+
+    /**
+     * Offline conversion: CheckpointFormat &lt;old .ser file&gt; &lt;new file&gt;
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: " + CheckpointFormat.class.getName() + " <old .ser file> <new file>");
+            System.exit(1);
+        }
+        convert(new File(args[0]), new File(args[1]));
+    }
+}
@@ -0,0 +1,326 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.InodeTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the changes of the positions, written next to the checkpoint file
+ * (pathtoser.journal.N). Every change of a position is appended as it happens, so the cost does
+ * not depend on the number of observed files and a crash only loses the last change.
+ * <p>
+ * The journal is compacted into the checkpoint periodically: a new journal is started, the
+ * checkpoint is written with the current positions and the previous journals are deleted.
+ * On startup the checkpoint is loaded and the journals are replayed in order over it.
+ * <p>
+ * Record layout: byte type, long device, long inode, for PUT long offset, boolean offset in bytes,
+ * long fingerprint, int bytes of the fingerprint and UTF path, and the CRC32 of the record as int. Replay stops at the first incomplete or corrupt
+ * record (a write interrupted by a crash).
+ */
+public class CheckpointJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointJournal.class);
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+
+    private final File dir;
+    private final String prefix;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordData = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    private FileOutputStream out;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+    private long fsyncIntervalMillis = 5000;
+    private long lastSync;
+    private long generation;
+    private long records;
+    // Cambios que todavia no estan en el checkpoint, y los que estan entrando en la compactacion en curso
+    private long pending;
+    private long compacting;
+    // Journals whose changes are not in the checkpoint yet, deleted after the next compaction
+    private final List<File> closed = new ArrayList<File>();
+
+    public CheckpointJournal(String checkpointPath) {
+        File checkpoint = new File(checkpointPath).getAbsoluteFile();
+        this.dir = checkpoint.getParentFile();
+        this.prefix = checkpoint.getName() + ".journal.";
+        this.closed.addAll(existingJournals());
+        this.generation = closed.isEmpty() ? 0 : generationOf(closed.get(closed.size() - 1));
+    }
+
+    public synchronized void setFsyncPolicy(FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    /**
+     * Applies the journals left by a previous execution to the positions read from the checkpoint.
+     * @return number of records applied
+     */
+    public synchronized int replay(Map<String, InodeInfo> inodes) {
+        int applied = 0;
+        for (File journal : existingJournals()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+                applied += replay(journal, in, inodes);
+            } catch (IOException e) {
+                LOGGER.warn("Error reading journal " + journal, e);
+            }
+        }
+        if (applied > 0) {
+            LOGGER.info("Applied " + applied + " position changes from the journal");
+        }
+        pending += applied;
+        return applied;
+    }
+
+    private int replay(File journal, DataInputStream in, Map<String, InodeInfo> inodes) throws IOException {
+        int applied = 0;
+        CRC32 check = new CRC32();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream copy = new DataOutputStream(bytes);
+
+        while (true) {
+            bytes.reset();
+            try {
+                byte type = in.readByte();
+                long dev = in.readLong();
+                long ino = in.readLong();
+                copy.writeByte(type);
+                copy.writeLong(dev);
+                copy.writeLong(ino);
+
+                InodeInfo info = null;
+                if (type == PUT) {
+                    long offset = in.readLong();
+                    boolean byteOffset = in.readBoolean();
+                    long fingerprint = in.readLong();
+                    int fingerprintLength = in.readInt();
+                    String path = in.readUTF();
+                    copy.writeLong(offset);
+                    copy.writeBoolean(byteOffset);
+                    copy.writeLong(fingerprint);
+                    copy.writeInt(fingerprintLength);
+                    copy.writeUTF(path);
+
+                    info = new InodeInfo(offset, path);
+                    info.setByteOffset(byteOffset);
+                    info.setFingerprint(fingerprint, fingerprintLength);
+                } else if (type != REMOVE) {
+                    LOGGER.warn("Corrupt record in journal " + journal + ", ignoring the rest of it");
+                    return applied;
+                }
+
+                int expected = in.readInt();
+                check.reset();
+                check.update(bytes.toByteArray());
+                if ((int) check.getValue() != expected) {
+                    LOGGER.warn("Corrupt record in journal " + journal + ", ignoring the rest of it");
+                    return applied;
+                }
+
+                if (info != null) {
+                    inodes.put(InodeTable.id(dev, ino), info);
+                } else {
+                    inodes.remove(InodeTable.id(dev, ino));
+                }
+                applied++;
+            } catch (EOFException e) {
+                // Fin del journal o ultimo registro incompleto
+                return applied;
+            }
+        }
+    }
+
+    /**
+     * Appends the committed position of an inode.
+     */
+    public synchronized void put(String inode, InodeInfo info) {
+        if (!isInode(inode)) {
+            return;
+        }
+        try {
+            record.reset();
+            recordData.writeByte(PUT);
+            recordData.writeLong(InodeTable.dev(inode));
+            recordData.writeLong(InodeTable.ino(inode));
+            Long position = info.getCommittedPosition();
+            recordData.writeLong(position == null ? 0L : position);
+            recordData.writeBoolean(info.isByteOffset());
+            recordData.writeLong(info.getFingerprint());
+            recordData.writeInt(info.getFingerprintLength());
+            recordData.writeUTF(info.getFileName());
+            append();
+        } catch (IOException e) {
+            LOGGER.error("Error writing journal", e);
+        }
+    }
+
+    /**
+     * Appends the removal of an inode that is not observed anymore.
+     * @return false if the removal could not be recorded, the checkpoint has to be written again
+     */
+    public synchronized boolean remove(String inode) {
+        if (!isInode(inode)) {
+            return false;
+        }
+        try {
+            record.reset();
+            recordData.writeByte(REMOVE);
+            recordData.writeLong(InodeTable.dev(inode));
+            recordData.writeLong(InodeTable.ino(inode));
+            append();
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Error writing journal", e);
+            return false;
+        }
+    }
+
+    private void append() throws IOException {
+        crc.reset();
+        crc.update(record.toByteArray());
+        recordData.writeInt((int) crc.getValue());
+
+        if (out == null) {
+            generation++;
+            out = new FileOutputStream(new File(dir, prefix + generation), true);
+        }
+        // Un solo write por registro
+        record.writeTo(out);
+        records++;
+        pending++;
+
+        long now = System.currentTimeMillis();
+        if (fsyncPolicy.shouldSync(lastSync, fsyncIntervalMillis, now)) {
+            out.getChannel().force(false);
+            lastSync = now;
+        }
+    }
+
+    /**
+     * Starts a new journal. The changes written from now on go to the new one.
+     * @return the journals whose changes have to be in the checkpoint before deleting them
+     */
+    public synchronized List<File> rotate() {
+        closeCurrent();
+        compacting = pending;
+        List<File> result = new ArrayList<File>(closed);
+        return result;
+    }
+
+    /**
+     * Deletes the journals returned by {@link #rotate()} once the checkpoint has been written.
+     */
+    public synchronized void delete(List<File> journals) {
+        for (File journal : journals) {
+            if (!journal.delete() && journal.exists()) {
+                LOGGER.warn("Unable to delete journal " + journal);
+                continue;
+            }
+            closed.remove(journal);
+        }
+        pending -= compacting;
+        compacting = 0;
+    }
+
+    /**
+     * @return number of changes written since the last compaction, 0 if the checkpoint is up to date
+     */
+    public synchronized long getPendingRecords() {
+        return pending;
+    }
+
+    /**
+     * Forces the current journal to disk, unless the fsync policy is never.
+     */
+    public synchronized void sync() {
+        if (out == null || fsyncPolicy == FsyncPolicy.NEVER) {
+            return;
+        }
+        try {
+            out.getChannel().force(false);
+            lastSync = System.currentTimeMillis();
+        } catch (IOException e) {
+            LOGGER.warn("Error forcing journal to disk", e);
+        }
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized void close() {
+        closeCurrent();
+    }
+
+    private void closeCurrent() {
+        if (out == null) {
+            return;
+        }
+        try {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                out.getChannel().force(false);
+            }
+            out.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing journal", e);
+        }
+        closed.add(new File(dir, prefix + generation));
+        out = null;
+    }
+
+    private List<File> existingJournals() {
+        List<File> journals = new ArrayList<File>();
+        File[] files = dir == null ? null : dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(prefix) && generationOf(file) >= 0) {
+                    journals.add(file);
+                }
+            }
+        }
+        Collections.sort(journals, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(generationOf(a), generationOf(b));
+            }
+        });
+        return journals;
+    }
+
+    private long generationOf(File journal) {
+        try {
+            return Long.parseLong(journal.getName().substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isInode(String inode) {
+        try {
+            InodeTable.ino(inode);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
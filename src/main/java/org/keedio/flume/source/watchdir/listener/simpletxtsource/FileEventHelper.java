@@ -3,21 +3,37 @@ package org.keedio.flume.source.watchdir.listener.simpletxtsource;
 import org.apache.flume.ChannelException;
 import org.apache.flume.Event;
 import org.apache.flume.event.EventBuilder;
+import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.InodeTable;
+import org.keedio.flume.source.watchdir.WatchDirException;
 import org.keedio.flume.source.watchdir.listener.LineReadListener;
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.ByteCharSequence;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.ChannelAccessor;
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.EventBuffer;
 import org.keedio.flume.source.watchdir.metrics.MetricsEvent;
+import org.keedio.flume.source.watchdir.util.InodeResolver;
 import org.keedio.flume.source.watchdir.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 
 /**
@@ -32,14 +48,41 @@ public class FileEventHelper {
 
   protected static final String FILEHEADERNAME_FAKE = "fileHeaderNameFake";
 
+  private static final int READ_CHUNK_SIZE = 8192;
+  private static final int MIN_INCOMING_CAPACITY = 1024;
+
 
   private List<Integer> listIndexToRemove;
   private Map<String, TreeMap<Integer,Event>> mapPendingEvents;
   private List<Event> listEventToProcess;
 
-  private ChannelAccessor accessor;
+  //Elementos reutilizados en el tratamiento multilinea (siempre bajo el lock del helper)
+  private final ByteCharSequence multilineView;
+  private Matcher multilineMatcher;
+  private Matcher multilineFirstLineMatcher;
+  private String multilineSeparator;
+  private byte[] multilineSeparatorBytes;
+
+  private final ChannelAccessor accessor;
+  private FileTailReader reader;
+  private final Charset outputCharset;
   FileEventSourceListener listener;
+  //Eventos leidos por los workers, sin locks. Se pasan al buffer al enviarlos
+  private final EventBuffer incoming;
+  //Eventos que se estan enviando y eventos multilinea pendientes de completar (siempre bajo el lock del helper)
   private List<Event> buffer;
+  private volatile int pendingEvents;
+  private volatile long pendingBytes;
+  //El source se esta parando, los lotes rechazados por el canal no se reintentan
+  private volatile boolean stopping;
+  //Aviso al hilo de autocommit: primer evento leido tras un envio, o se alcanza el tamaño del lote
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final Condition flushNeeded = flushLock.newCondition();
+  private final AtomicLong firstEventTime = new AtomicLong();
+  private final AtomicBoolean flushSignaled = new AtomicBoolean();
+  private volatile int flushTarget;
+  //Cabeceras compartidas por los eventos de cada inodo, se rehacen si el fichero se renombra
+  private final ConcurrentHashMap<String, FileHeaders> fileHeaders = new ConcurrentHashMap<String, FileHeaders>();
   private LineReadListener lineReadListener;
   
   public void setLineReadListener(LineReadListener lineReadListener){
@@ -47,16 +90,121 @@ public class FileEventHelper {
   }
 
   public FileEventHelper(FileEventSourceListener listener) {
-    this.accessor = ChannelAccessor.getInstance();
+    this(listener, new ChannelAccessor(listener.getChannelProcessor()));
+  }
+
+  public FileEventHelper(FileEventSourceListener listener, ChannelAccessor accessor) {
+    this.accessor = accessor;
     this.listener = listener;
-    //this.buffer = new ArrayList<>();
-    this.buffer = new Vector<Event>();
+    this.buffer = new ArrayList<Event>();
+    this.incoming = new EventBuffer(Math.max(2 * listener.eventsCapacity, MIN_INCOMING_CAPACITY), 2 * listener.batchBytes);
+    this.reader = new FileTailReader(listener.maxOpenFiles > 0 ? listener.maxOpenFiles : FileTailReader.DEFAULT_MAX_OPEN);
+    //Los cuerpos de los eventos estan en el charset de salida
+    this.outputCharset = listener.outputCharset == null ? Charset.defaultCharset() : listener.outputCharset;
+    this.multilineView = new ByteCharSequence(outputCharset);
+    this.flushTarget = Math.max(1, listener.eventsCapacity);
   }
 
+  /**
+   * @return the events read and not sent yet
+   */
   public synchronized List<Event> getBuffer() {
+    drainIncoming(buffer);
     return buffer;
   }
 
+  private void drainIncoming(List<Event> target) {
+    firstEventTime.set(0);
+    flushSignaled.set(false);
+    incoming.drainTo(target);
+  }
+
+  /**
+   * @return number of events read and not sent yet, without waiting for a batch being sent
+   */
+  public int getBufferedEvents() {
+    return incoming.size() + pendingEvents;
+  }
+
+  /**
+   * @return bytes of the bodies of the events read and not sent yet
+   */
+  public long getBufferedBytes() {
+    return incoming.bytes() + pendingBytes;
+  }
+
+  /**
+   * @return number of events read since the last time the buffer was sent
+   */
+  public int getNewEvents() {
+    return incoming.size();
+  }
+
+  /**
+   * @return bytes of the bodies of the events read since the last time the buffer was sent
+   */
+  public long getNewBytes() {
+    return incoming.bytes();
+  }
+
+  /**
+   * @return time in millis when the first event since the last time the buffer was sent was read,
+   * 0 if no event was read
+   */
+  public long getFirstEventTime() {
+    return firstEventTime.get();
+  }
+
+  public int getFlushTarget() {
+    return flushTarget;
+  }
+
+  /**
+   * Sets the number of new events that wakes up the thread waiting in {@link #awaitFlush(long, long)}.
+   */
+  public void setFlushTarget(int flushTarget) {
+    this.flushTarget = Math.max(1, flushTarget);
+  }
+
+  /**
+   * Waits until an event is read after an idle period, the new events reach the flush target or
+   * batchBytes, or the time passes. Returns at once if any of them happened since the caller read
+   * the first event time, so no wake up is lost.
+   */
+  public void awaitFlush(long observedFirstEventTime, long millis) throws InterruptedException {
+    flushLock.lock();
+    try {
+      if (firstEventTime.get() == observedFirstEventTime && !flushSignaled.getAndSet(false)) {
+        flushNeeded.await(millis, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  private void signalFlush() {
+    flushLock.lock();
+    try {
+      flushNeeded.signalAll();
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Wakes up the thread waiting to send the buffer when the first event is read (its deadline
+   * starts) and when the batch is complete. The lock is only taken in those two cases.
+   */
+  private void eventAdded() {
+    if (firstEventTime.get() == 0 && firstEventTime.compareAndSet(0, System.currentTimeMillis())) {
+      signalFlush();
+    } else if (!flushSignaled.get()
+        && (incoming.size() >= flushTarget || (listener.batchBytes > 0 && incoming.bytes() >= listener.batchBytes))
+        && flushSignaled.compareAndSet(false, true)) {
+      signalFlush();
+    }
+  }
+
   public void process(String inode) {
     String path = "";
     try {
@@ -64,22 +212,130 @@ public class FileEventHelper {
       int procesados = 0;
       path = this.listener.getFilesObserved().get(inode).getFileName();
       LOGGER.debug("Processing inode:" + inode + ", path: " + path);
-      File file = new File(path);
-      
-      if (file.exists()) {
-        readLines(inode);
 
-        long intervalo = new Date().getTime() - inicio.getTime();
+      // Sin comprobar antes si existe: si ya no esta falla la apertura del canal
+      procesados = readLines(inode);
 
-        // Notificamos el tiempo de procesado para las metricas
-        listener.getMetricsController().manage(new MetricsEvent(MetricsEvent.MEAN_FILE_PROCESS, intervalo));
-        listener.getMetricsController().manage(new MetricsEvent(MetricsEvent.TOTAL_FILE_EVENTS, procesados));
+      long intervalo = new Date().getTime() - inicio.getTime();
 
+      // Notificamos el tiempo de procesado para las metricas
+      listener.getMetricsController().manage(new MetricsEvent(MetricsEvent.MEAN_FILE_PROCESS, intervalo));
+      listener.getMetricsController().manage(new MetricsEvent(MetricsEvent.TOTAL_FILE_EVENTS, procesados));
+    } catch (Exception e) {
+      if (isFileGone(e)) {
+        LOGGER.warn("File '" + path + "' associated with inode '"+inode+"' does not exists and cannot be processed.");
       } else {
-        LOGGER.warn("File '" + file + "' associated with inode '"+inode+"' does not exists and cannot be processed.");
+        LOGGER.error("Error procesando el fichero: " + path, e);
+      }
+    }
+  }
+
+  private static boolean isFileGone(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof NoSuchFileException || t instanceof FileNotFoundException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Releases the resources kept open to read the file of the inode.
+   */
+  public void closeInode(String inode) {
+    reader.close(inode);
+    fileHeaders.remove(inode);
+  }
+
+  /**
+   * Releases the resources kept open for inodes that are not observed anymore.
+   */
+  public void retainInodes(Collection<String> observedInodes) {
+    reader.retain(observedInodes);
+    fileHeaders.keySet().retainAll(observedInodes);
+  }
+
+  /**
+   * Closes the files not read in the last idleMillis, they are opened again on their next read.
+   */
+  public void closeIdleFiles(long idleMillis) {
+    reader.closeIdle(idleMillis);
+  }
+
+  /**
+   * @return headers of the events of the file, the same immutable map for every line while the
+   * file is not renamed
+   */
+  private Map<String, String> headersOf(String inode, String path) {
+    FileHeaders headers = fileHeaders.get(inode);
+    if (headers == null || !headers.path.equals(path)) {
+      headers = new FileHeaders(path, Collections.unmodifiableMap(createEventHeaders(path)));
+      fileHeaders.put(inode, headers);
+    }
+    return headers.headers;
+  }
+
+  private static final class FileHeaders {
+    final String path;
+    final Map<String, String> headers;
+
+    FileHeaders(String path, Map<String, String> headers) {
+      this.path = path;
+      this.headers = headers;
+    }
+  }
+
+  public void close() {
+    stopDelivery();
+    reader.closeAll();
+  }
+
+  /**
+   * The source is stopping: the batch being retried and the next ones rejected by the channel are
+   * given up, their files will be read again from the committed position.
+   */
+  public void stopDelivery() {
+    stopping = true;
+  }
+
+  /**
+   * Sends a batch to the channel. While the channel rejects it (full, or the sinks are failing) it is
+   * retried after a backoff that doubles from backoffSleepIncrement up to maxBackoff. Meanwhile the
+   * helper lock is held: the readers wait when the buffer is full, so they stop reading instead of
+   * losing events, and the committed positions do not move.
+   * @throws ChannelException if the source is stopping or the thread is interrupted
+   */
+  private void deliver(List<Event> batch) {
+    long backoff = Math.max(1, listener.backoffSleepIncrement);
+    int retries = 0;
+
+    while (true) {
+      try {
+        accessor.sendEventsToChannel(batch);
+        if (retries > 0) {
+          LOGGER.info(String.format("%d events delivered to the channel after %d retries", batch.size(), retries));
+        }
+        return;
+      } catch (ChannelException e) {
+        if (stopping) {
+          throw e;
+        }
+        if (retries == 0) {
+          LOGGER.warn(String.format("The channel rejected %d events, retrying: %s", batch.size(), e.getMessage()));
+        } else {
+          LOGGER.debug(String.format("The channel rejected %d events (retry %d), next retry in %d ms", batch.size(), retries, backoff));
+        }
+        listener.getMetricsController().manage(new MetricsEvent(MetricsEvent.CHANNEL_RETRY));
+
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+        retries++;
+        backoff = Math.min(backoff * 2, Math.max(backoff, listener.maxBackoff));
       }
-    } catch (Exception e) {
-      LOGGER.error("Error procesando el fichero: " + path, e);
     }
   }
 
@@ -95,18 +351,15 @@ public class FileEventHelper {
       if (listener.multilineActive) {
           processEventBatch();
       } else {
-          //listener.getChannelProcessor().processEventBatch(getBuffer());
           LOGGER.debug("commitPendings ===> Send ALL events to channel");
-          accessor.sendEventsToChannel(getBuffer());
+          sendBuffer();
       }
       isComplete = true;
     } catch (ChannelException e) {
-      LOGGER.error("No se han podido innyectar los eventos", e.getMessage());
-      LOGGER.error("Mensajes perdidos: " + getBuffer().size());
-      // Borramos el buffer
-      LOGGER.error("ERROR AL INYECTAR LOS DATOS EN EL CANAL. PARAMOS EL AGENTE.",e);
-      Util.printFilesObserved(listener.getFilesObserved());
-      listener.stop();
+      // Solo llega aqui si se ha dejado de reintentar (parada del source)
+      LOGGER.warn("No se han podido innyectar los eventos: " + e.getMessage());
+      // Borramos el buffer, los ficheros se volveran a leer desde la ultima posicion confirmada
+      LOGGER.warn("Eventos no entregados, se volveran a leer: " + getBufferedEvents());
     } catch (Exception e) {
       LOGGER.error("Excepcion general por los interceptores.",e);
 
@@ -117,14 +370,11 @@ public class FileEventHelper {
       Util.printFilesObserved(listener.getFilesObserved());
     } finally {
 
-      if (isComplete) {
-          if (!listener.multilineActive) {
-              //En caso de no haber tratamiento multilínea vaciamos el buffer
-              getBuffer().clear();
-          }
-      } else {
+      //Sin tratamiento multilínea el buffer se vacía al enviarlo (sendBuffer), los eventos añadidos después por otros
+      //workers se envían en el siguiente commit
+      if (!isComplete) {
           //Si ha habido algun problema vaciaremos el buffer independientemente si hay tratamiento multilinea o no
-          getBuffer().clear();
+          clearBuffer();
       }
 
     }
@@ -133,86 +383,347 @@ public class FileEventHelper {
 
   }
 
-  private void  readLines(String inode) throws Exception {
+  private int readLines(String inode) throws Exception {
 
     LOGGER.debug("ENTRAMOS EN EL HELPER......");
-    //
-    Long lastByte = 0L;
-    processInode(this.listener.getFilesObserved().get(inode).getFileName(), inode);
+    return processInode(this.listener.getFilesObserved().get(inode).getFileName(), inode);
 
   }
 
-  private void processInode(String path, String inode) throws Exception {
+  private int processInode(String path, String inode) throws Exception {
 
-    Long lastLine = listener.getFilesObserved().get(inode).getPosition();
-    LOGGER.debug(String.format("Se procesa el fichero %s(%s) desde la linea %d", path, inode, lastLine));
+    InodeInfo info = listener.getFilesObserved().get(inode);
 
-    if (lastLine < 0) {
-      LOGGER.debug(String.format("Negative lastByte: %d", lastLine));
-      return;
+    if (!info.isByteOffset()) {
+      // Position restored from an old ser file, it is a line count. We translate it once.
+      long offset = lineToByteOffset(path, info.getPosition());
+      LOGGER.info(String.format("Migrating position of %s(%s) from line %d to byte %d", path, inode, info.getPosition(), offset));
+      info.setPosition(offset);
+      info.setCommittedPosition(offset);
+      info.setByteOffset(true);
+    }
+
+    if (info.rewind()) {
+      LOGGER.warn(String.format("Events of %s(%s) were not delivered, reading it again from byte %d", path, inode, info.getPosition()));
     }
 
-    List<String> linesToProc;
+    // Primera lectura con el canal abierto (arranque, renombrado o inodo reutilizado): se comprueba la huella
+    boolean opened = !reader.isOpen(inode);
+    long size = currentSize(path, inode);
+    checkIdentity(path, inode, info, size, opened);
 
-    try (BufferedReader br = getBufferedReader(path)) {
-      //skip the first line and the columns length to get the data
-      //columns are identified as being splittable on the delimiter
-      linesToProc = br.lines().skip(lastLine).map(s -> (String)s).collect(Collectors.toList());
+    Long lastByte = info.getPosition();
+    LOGGER.debug(String.format("Se procesa el fichero %s(%s) desde el byte %d", path, inode, lastByte));
+
+    if (lastByte < 0) {
+      LOGGER.debug(String.format("Negative lastByte: %d", lastByte));
+      return 0;
+    }
+
+    // Lines are turned into events as they are read, so memory does not depend on the unread size of the file
+    StreamingLineHandler handler = new StreamingLineHandler(path, inode, info);
+    long newPosition;
+
+    try {
+      newPosition = reader.readLines(inode, path, lastByte, size, handler);
     } catch (Exception e) {
       throw new RuntimeException(e);
-    }		
+    }
+
+    LOGGER.debug(String.format("%s(%s):Se procesa actualiza de %d a %d", path, inode, lastByte, newPosition));
+
+    if (newPosition != info.getPosition()) {
+      info.setPosition(newPosition);
+    }
+
+    // Huella de los primeros bytes ya leidos, hasta fingerprintBytes
+    int fingerprintLength = (int) Math.min(listener.fingerprintBytes, newPosition);
+    if (fingerprintLength > info.getFingerprintLength()) {
+      info.setFingerprint(reader.fingerprint(inode, path, fingerprintLength), fingerprintLength);
+    }
+    // Sin eventos del fichero pendientes de enviar, las lineas leidas (descartadas) quedan confirmadas
+    if (info.commitRead()) {
+      listener.positionChanged(inode, info);
+    }
+
+    return handler.lines;
+  }
 
-    for (String line : linesToProc) {
-      LOGGER.debug(String.format("%s(%s):Se procesa linea: %s", path, inode, line));
-      if (lineReadListener != null){
-        lineReadListener.lineRead(line);
+  /**
+   * @return size of the file, from the single stat of the resolver if the path is still the
+   * file of the inode, otherwise from the channel kept for the inode
+   */
+  private long currentSize(String path, String inode) throws IOException {
+    InodeResolver resolver = listener.resolver;
+    if (resolver != null) {
+      try {
+        InodeResolver.FileAttributes attributes = resolver.getAttributes(path);
+        if (InodeTable.sameInode(attributes.getInodeKey(), inode)) {
+          return attributes.getSize();
+        }
+      } catch (WatchDirException e) {
+        LOGGER.debug("Unable to stat " + path + ", using the channel of inode " + inode);
       }
+    }
+    return reader.size(inode, path);
+  }
+
+  /**
+   * Detects that the file is not the one read until now and reads it again from the beginning:
+   * it is smaller than the position read (truncated, copytruncate rotation) or, on the first read
+   * after opening it, its first bytes are not the ones saved in the fingerprint (truncated and
+   * written again, or the inode was reused by another file). An append only compares the size.
+   */
+  private void checkIdentity(String path, String inode, InodeInfo info, long size, boolean verifyContent) throws IOException {
+    String reason = null;
+    if (size < info.getPosition()) {
+      reason = String.format("it was truncated to %d bytes", size);
+    } else if (verifyContent && info.getFingerprintLength() > 0
+        && reader.fingerprint(inode, path, info.getFingerprintLength()) != info.getFingerprint()) {
+      reason = String.format("its first %d bytes changed", info.getFingerprintLength());
+    }
 
-      if (line.length() > listener.maxchars) {
-        LOGGER.debug(String.format("Se superan el tamaño máximo, descartamos el mensaje --> %s", line));
-        continue;
+    if (reason != null) {
+      LOGGER.warn(String.format("File %s(%s) read up to byte %d is not the same file, %s. Reading it from the beginning", path, inode, info.getPosition(), reason));
+      info.restart();
+      listener.positionChanged(inode, info);
+    }
+  }
+
+  /**
+   * Creates the event of a line read from a file and adds it to the buffer. The bytes read are
+   * used as the body of the event, they are only decoded when the line is too long in bytes to
+   * know if it is within the max chars limit.
+   */
+  private void processLine(String path, String inode, InodeInfo info, byte[] line, long nextOffset, int epoch, ByteCharSequence view) {
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug(String.format("%s(%s):Se procesa linea: %s", path, inode, view.reset(line)));
+    }
+    if (lineReadListener != null){
+      lineReadListener.lineRead(view.reset(line).toString());
+    }
+
+    // A char takes at least one byte, the line can only be too long if it has more bytes than the limit
+    if (line.length > listener.maxchars && view.reset(line).length() > listener.maxchars) {
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug(String.format("Se superan el tamaño máximo, descartamos el mensaje --> %s", view));
       }
+      return;
+    }
+
+    TailEvent ev = new TailEvent(inode, info, nextOffset, epoch);
+    ev.setBody(toOutputCharset(line, view));
 
-      Event ev = EventBuilder.withBody(line.getBytes());
+    //Obtenemos los headers para el evento
+    Map<String, String> headers = headersOf(inode, path);
 
-      //Obtenemos los headers para el evento
-      Map<String, String> headers = createEventHeaders(path);
+    if (!headers.isEmpty()) {
+        ev.setSharedHeaders(headers);
+    }
 
-      if (!headers.isEmpty()) {
-          ev.setHeaders(headers);
+    // Antes de anadirlo: en cuanto esta en el buffer se puede enviar y confirmar
+    info.eventRead();
+    boolean buffered = false;
+    try {
+      // Buffer lleno: el worker envia los eventos leidos antes de seguir leyendo
+      while (!incoming.offer(ev)) {
+        flushBuffer();
+      }
+      buffered = true;
+    } finally {
+      if (!buffered) {
+        // El envio ha fallado (el source se esta parando): la linea se leera otra vez
+        info.eventLost();
       }
+    }
+    eventAdded();
 
-      getBuffer().add(ev);
+    // Notificamos un evento de nuevo mensaje
+    listener.getMetricsController().manage(new MetricsEvent(MetricsEvent.NEW_EVENT));
+  }
 
-      // Notificamos un evento de nuevo mensaje
-      listener.getMetricsController().manage(new MetricsEvent(MetricsEvent.NEW_EVENT));
+  /**
+   * Returns the body of the event for a line. When the charset of the file is the output charset
+   * (or the line is ASCII and both charsets are ASCII compatible) the bytes read are used as they
+   * are, otherwise the line is transcoded.
+   */
+  private byte[] toOutputCharset(byte[] line, ByteCharSequence view) {
+    Charset input = view.getCharset();
+    if (input.equals(outputCharset)
+        || (ByteCharSequence.isAsciiCompatible(outputCharset) && ByteCharSequence.isAscii(line, 0, line.length))) {
+      return line;
+    }
+    return view.reset(line).toString().getBytes(outputCharset);
+  }
 
+  /**
+   * Sends the buffer to the channel. With multiline active the pending lines of unfinished
+   * events stay in the buffer.
+   */
+  private void flushBuffer() {
+    if (listener.multilineActive) {
+        processEventBatch();
+    } else {
+        sendBuffer();
     }
+  }
 
-    LOGGER.debug(String.format("%s(%s):Se procesa actualiza de %d a %d", path, inode, lastLine, lastLine+linesToProc.size()));
+  /**
+   * Sends the events in the buffer to the channel and removes them from it. The files are read
+   * by several workers, so the events are taken from the buffer atomically: events added while
+   * sending stay for the next batch. The helper lock keeps batches in the order they were taken.
+   */
+  private synchronized void sendBuffer() {
+    List<Event> events = buffer;
+    drainIncoming(events);
+    buffer = new ArrayList<Event>();
+    pendingEvents = 0;
+    pendingBytes = 0;
+
+    int to;
+    for (int from = 0; from < events.size(); from = to) {
+      to = batchEnd(events, from);
+      List<Event> batch = to - from == events.size() ? events : events.subList(from, to);
+      try {
+        deliver(batch);
+      } catch (RuntimeException e) {
+        eventsLost(events.subList(from, events.size()));
+        throw e;
+      }
+      eventsCommitted(batch);
+    }
+  }
 
-    listener.getFilesObserved().get(inode).setPosition(lastLine+linesToProc.size());
+  /**
+   * Splits the events sent in transactions of at most eventsCapacity events and batchBytes bytes.
+   * @return end (exclusive) of the transaction that starts at from, it has one event at least
+   */
+  private int batchEnd(List<Event> events, int from) {
+    int maxEvents = listener.eventsCapacity > 0 ? listener.eventsCapacity : Integer.MAX_VALUE;
+    long bytes = 0;
+    int to = from;
+    while (to < events.size() && to - from < maxEvents) {
+      bytes += EventBuffer.bytes(events.get(to));
+      if (to > from && listener.batchBytes > 0 && bytes > listener.batchBytes) {
+        break;
+      }
+      to++;
+    }
+    return to;
+  }
 
-    // Lanzamos los eventos del buffer si sobrepasamos el máximo
-    if (getBuffer().size() > listener.eventsCapacity) {
+  /**
+   * Empties the buffer, the files of the events removed are read again from the committed position.
+   */
+  private synchronized void clearBuffer() {
+    List<Event> lost = buffer;
+    drainIncoming(lost);
+    buffer = new ArrayList<Event>();
+    pendingEvents = 0;
+    pendingBytes = 0;
+    eventsLost(lost);
+  }
 
-        LOGGER.debug("processInode ==> events capacity excedeed");
-        if (listener.multilineActive) {
-            processEventBatch();
-        } else {
-            //listener.getChannelProcessor().processEventBatch(getBuffer());
-            accessor.sendEventsToChannel(getBuffer());
-            getBuffer().clear();
+  /**
+   * Moves the committed position of the files of the events delivered to the channel. The position
+   * is journaled once per file and batch.
+   */
+  private void eventsCommitted(List<Event> events) {
+    Map<String, InodeInfo> moved = null;
+    for (Event event : events) {
+      if (event instanceof TailEvent) {
+        TailEvent tailEvent = (TailEvent) event;
+        if (tailEvent.getInfo().eventCommitted(tailEvent.getOffset(), tailEvent.getEpoch())) {
+          if (moved == null) {
+            moved = new LinkedHashMap<String, InodeInfo>();
+          }
+          moved.put(tailEvent.getInode(), tailEvent.getInfo());
         }
-
+      }
+    }
+    if (moved != null) {
+      for (Map.Entry<String, InodeInfo> entry : moved.entrySet()) {
+        listener.positionChanged(entry.getKey(), entry.getValue());
+      }
     }
+  }
 
+  private static void eventsLost(List<Event> events) {
+    for (Event event : events) {
+      if (event instanceof TailEvent) {
+        ((TailEvent) event).getInfo().eventLost();
+      }
+    }
   }
 
-  private static BufferedReader getBufferedReader(String fileName) throws FileNotFoundException {
-    return new BufferedReader(new FileReader(fileName));
+  /**
+   * Converts the lines of a file into events while they are read, sending the buffer to the
+   * channel every eventsCapacity events and moving the read position of the file with every batch sent.
+   * The committed position moves when the events are delivered.
+   */
+  private class StreamingLineHandler implements FileTailReader.LineHandler {
+
+    private final String path;
+    private final String inode;
+    private final InodeInfo info;
+    private final ByteCharSequence view;
+    private final int epoch;
+    private int flushThreshold;
+    private long flushBytesThreshold;
+    private int lines;
+
+    StreamingLineHandler(String path, String inode, InodeInfo info) {
+      this.path = path;
+      this.inode = inode;
+      this.info = info;
+      this.epoch = info.getEpoch();
+      this.flushThreshold = listener.eventsCapacity;
+      this.flushBytesThreshold = listener.batchBytes;
+      this.view = new ByteCharSequence(info.getCharset() == null ? Charset.defaultCharset() : info.getCharset());
+    }
+
+    @Override
+    public void onLine(byte[] line, long nextOffset) {
+      processLine(path, inode, info, line, nextOffset, epoch, view);
+      lines++;
+
+      if (getBufferedEvents() >= flushThreshold
+          || (listener.batchBytes > 0 && getBufferedBytes() >= flushBytesThreshold)) {
+        LOGGER.debug("processInode ==> events capacity excedeed");
+        flushBuffer();
+        info.setPosition(nextOffset);
+
+        // Pending multiline events remain in the buffer, they must not trigger a flush for every new line
+        flushThreshold = getBufferedEvents() + listener.eventsCapacity;
+        flushBytesThreshold = getBufferedBytes() + listener.batchBytes;
+      }
+    }
   }
 
+  /**
+   * Translates a position stored as number of lines (old ser files) into a byte offset.
+   * If the file has less lines than expected the whole file is considered read, as the old
+   * reader also counted a last line without line feed.
+   */
+  private static long lineToByteOffset(String path, long lines) throws IOException {
+
+    if (lines <= 0) {
+      return lines;
+    }
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(path), READ_CHUNK_SIZE)) {
+      long offset = 0;
+      long found = 0;
+      int b;
+      while ((b = in.read()) != -1) {
+        offset++;
+        if (b == '\n' && ++found == lines) {
+          return offset;
+        }
+      }
+      return offset;
+    }
+  }
 
     /**
      * Procesa los eventos que hubiera en el buffer concatenando aquellos que pertenezcan al mismo fichero y que sean eventos multilinea (excepciones, etc)
@@ -356,7 +867,11 @@ public class FileEventHelper {
         if (listEventToProcess.size() > 0) {
             //listener.getChannelProcessor().processEventBatch(listEventToProcess);
             LOGGER.debug("processEventBatch ====> send Events to channel");
-            accessor.sendEventsToChannel(listEventToProcess);
+            int to;
+            for (int from = 0; from < listEventToProcess.size(); from = to) {
+                to = batchEnd(listEventToProcess, from);
+                deliver(to - from == listEventToProcess.size() ? listEventToProcess : listEventToProcess.subList(from, to));
+            }
             clearListEventToProcess();
         }
 
@@ -367,12 +882,23 @@ public class FileEventHelper {
         LOGGER.debug("processEventBatch ==> Buffer size PRE remove index: " + buffer.size());
 
         //Eliminamos del buffer los elementos seleccionados para su borrado. El borrado lo efectuado en orden inverso
+        List<Event> listEventsRemoved = new ArrayList<Event>(listIndexToRemove.size());
         ListIterator<Integer> listIndexesRemoveIterator = listIndexToRemove.listIterator(listIndexToRemove.size());
         while (listIndexesRemoveIterator.hasPrevious()) {
           int indexToRemove = listIndexesRemoveIterator.previous();
 
-          buffer.remove(indexToRemove);
+          listEventsRemoved.add(buffer.remove(indexToRemove));
         }
+
+        //Los eventos eliminados del buffer ya se han enviado, se confirma la posicion de sus ficheros (en orden de lectura)
+        Collections.reverse(listEventsRemoved);
+        eventsCommitted(listEventsRemoved);
+        long bytes = 0;
+        for (Event event : buffer) {
+            bytes += EventBuffer.bytes(event);
+        }
+        pendingEvents = buffer.size();
+        pendingBytes = bytes;
         LOGGER.debug("processEventBatch ==> Buffer size POST remove index: " + buffer.size());
 
         LOGGER.debug("END processEventBatch");
@@ -390,13 +916,11 @@ public class FileEventHelper {
 
         boolean isSimpleLineEvent = false;
 
-        //Obtenemos el String correspondiente al mensaje a partir dal array de bytes
-        String message = new String(eventBuffer.getBody());
-
+        //Vista de caracteres sobre el array de bytes del mensaje (no se crea un String por evento)
+        CharSequence message = multilineView.reset(eventBuffer.getBody());
 
-
-        Matcher matcher = listener.patternMultilineRegex.matcher(message);
-        isSimpleLineEvent = !matcher.matches();
+        multilineMatcher = reuseMatcher(multilineMatcher, listener.patternMultilineRegex, message);
+        isSimpleLineEvent = !multilineMatcher.matches();
 
         if (LOGGER.isDebugEnabled()) {
             String fileHeaderName = getFileHeaderNameFromHeaders(eventBuffer);
@@ -430,12 +954,12 @@ public class FileEventHelper {
         //Solo tendremos en cuenta la detección de la primera linea de excepción si se define en las propiedades.
         if (listener.patternMultilineFirstLineRegex != null) {
 
-            //Obtenemos el String correspondiente al mensaje a partir dal array de bytes
-            String message = new String(eventBuffer.getBody());
+            //Vista de caracteres sobre el array de bytes del mensaje (no se crea un String por evento)
+            CharSequence message = multilineView.reset(eventBuffer.getBody());
 
-            Matcher matcher = listener.patternMultilineFirstLineRegex.matcher(message);
+            multilineFirstLineMatcher = reuseMatcher(multilineFirstLineMatcher, listener.patternMultilineFirstLineRegex, message);
 
-            isMultilineFirstLineEvent = matcher.matches();
+            isMultilineFirstLineEvent = multilineFirstLineMatcher.matches();
 
             if (LOGGER.isDebugEnabled()) {
                 String fileHeaderName = getFileHeaderNameFromHeaders(eventBuffer);
@@ -461,7 +985,8 @@ public class FileEventHelper {
     private synchronized Event processPendingEventsFile(Event eventBuffer) {
 
         Event joinedEvent = null;
-        StringBuilder sb = new StringBuilder();
+        ByteArrayOutputStream joinedBody = new ByteArrayOutputStream();
+        byte[] separator = getMultilineSeparatorBytes();
 
         if (eventBuffer != null) {
 
@@ -479,6 +1004,7 @@ public class FileEventHelper {
                     //(bien las del primer evento de la cadena, bien las del último)
 
                     boolean getHeaderEvent = true;
+                    boolean firstLine = true;
                     Map<String, String> headersJoinedEvent = null;
 
                     //Recorremos el map generando el contenido del evento a devolver
@@ -487,10 +1013,9 @@ public class FileEventHelper {
 
                         Event partialEvent = treeMapPendingEventsFile.get(indexKey);
 
-                        //Obtenemos el String correspondiente al mensaje a partir dal array de bytes
-                        String partialMessage = new String(partialEvent.getBody());
-
-                        sb.append(partialMessage).append(listener.multilineEventLineSeparator);
+                        //Concatenamos los bytes de los mensajes, sin decodificarlos
+                        appendLine(joinedBody, partialEvent.getBody(), separator, firstLine);
+                        firstLine = false;
 
                         //Obtenemos la cabecera del evento si procede
                         if (getHeaderEvent) {
@@ -506,12 +1031,8 @@ public class FileEventHelper {
                         listIndexToRemove.add(indexKey);
                     }
 
-                    //Eliminamos el ultimo salto de linea
-                    if (sb.length() > 0) {
-                        sb.setLength(sb.length() - listener.multilineEventLineSeparator.length());
-                    }
-                    //Tenemos las cabeceras del primer (o del ultimo evento) y el StringBuilder con el contenido de todos los eventos pendientes
-                    joinedEvent = EventBuilder.withBody(sb.toString().getBytes());
+                    //Tenemos las cabeceras del primer (o del ultimo evento) y los bytes con el contenido de todos los eventos pendientes
+                    joinedEvent = EventBuilder.withBody(joinedBody.toByteArray());
                     joinedEvent.setHeaders(headersJoinedEvent);
 
                     //Eliminamos los eventos pendientes
@@ -539,13 +1060,14 @@ public class FileEventHelper {
     private synchronized List<Event> processAllPendingEvents() {
 
         List<Event> listEvents = new Vector<Event>();
-        StringBuilder sb = new StringBuilder();
+        ByteArrayOutputStream joinedBody = new ByteArrayOutputStream();
+        byte[] separator = getMultilineSeparatorBytes();
 
         //Obtenemos el conjunto de ficheros para los que existen eventos pendientes
         for (String fileHeaderName : mapPendingEvents.keySet()) {
 
             Event joinedEvent = null;
-            sb.setLength(0);
+            joinedBody.reset();
 
             //Obtenemos el arbol de eventos correspondientes al fichero
             TreeMap<Integer, Event> treeMapPendingEventsFile = mapPendingEvents.get(fileHeaderName);
@@ -554,6 +1076,7 @@ public class FileEventHelper {
             //(bien las del primer evento de la cadena, bien las del último)
 
             boolean getHeaderEvent = true;
+            boolean firstLine = true;
             Map<String, String> headersJoinedEvent = null;
 
             //Recorremos el map generando el contenido del evento a devolver
@@ -562,10 +1085,9 @@ public class FileEventHelper {
 
                 Event partialEvent = treeMapPendingEventsFile.get(indexKey);
 
-                //Obtenemos el String correspondiente al mensaje a partir dal array de bytes
-                String partialMessage = new String(partialEvent.getBody());
-
-                sb.append(partialMessage).append(listener.multilineEventLineSeparator);
+                //Concatenamos los bytes de los mensajes, sin decodificarlos
+                appendLine(joinedBody, partialEvent.getBody(), separator, firstLine);
+                firstLine = false;
 
                 //Obtenemos la cabecera del evento si procede
                 if (getHeaderEvent) {
@@ -581,12 +1103,8 @@ public class FileEventHelper {
                 listIndexToRemove.add(indexKey);
             }
 
-            //Eliminamos el ultimo salto de linea
-            if (sb.length() > 0) {
-                sb.setLength(sb.length() - listener.multilineEventLineSeparator.length());
-            }
-            //Tenemos las cabeceras del primer (o del ultimo evento) y el StringBuilder con el contenido de todos los eventos pendientes
-            joinedEvent = EventBuilder.withBody(sb.toString().getBytes());
+            //Tenemos las cabeceras del primer (o del ultimo evento) y los bytes con el contenido de todos los eventos pendientes
+            joinedEvent = EventBuilder.withBody(joinedBody.toByteArray());
             joinedEvent.setHeaders(headersJoinedEvent);
 
             //Anyadimos el evento a la lista de eventos a procesar
@@ -599,6 +1117,43 @@ public class FileEventHelper {
 
     }
 
+    /**
+     * Añade las lineas de un evento multilinea, separadas por el separador configurado
+     * @param joinedBody ByteArrayOutputStream con el contenido del evento
+     * @param line array de bytes de la linea a añadir
+     * @param separator array de bytes del separador de lineas
+     * @param firstLine boolean indicando si es la primera linea del evento (no lleva separador)
+     */
+    private static void appendLine(ByteArrayOutputStream joinedBody, byte[] line, byte[] separator, boolean firstLine) {
+        if (!firstLine) {
+            joinedBody.write(separator, 0, separator.length);
+        }
+        joinedBody.write(line, 0, line.length);
+    }
+
+    /**
+     * Devuelve el separador de lineas de los eventos multilinea codificado. Se calcula una sola vez.
+     * @return array de bytes del separador
+     */
+    private byte[] getMultilineSeparatorBytes() {
+        String separator = listener.multilineEventLineSeparator;
+        if (!separator.equals(multilineSeparator)) {
+            multilineSeparator = separator;
+            multilineSeparatorBytes = separator.getBytes(multilineView.getCharset());
+        }
+        return multilineSeparatorBytes;
+    }
+
+    /**
+     * Reutiliza el matcher si ya fue creado para el mismo pattern
+     */
+    private static Matcher reuseMatcher(Matcher matcher, Pattern pattern, CharSequence message) {
+        if (matcher == null || matcher.pattern() != pattern) {
+            return pattern.matcher(message);
+        }
+        return matcher.reset(message);
+    }
+
     /**
      * Añade un evento a la lista de eventos pendientes de procesar
      * @param eventBuffer Event pendiente de procesar
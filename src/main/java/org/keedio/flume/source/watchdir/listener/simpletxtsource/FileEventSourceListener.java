@@ -18,19 +18,22 @@
  ****************************************************************/
 package org.keedio.flume.source.watchdir.listener.simpletxtsource;
 
-import java.io.File;
 import java.io.RandomAccessFile;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.nio.channels.FileLock;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
@@ -42,7 +45,9 @@ import org.apache.flume.EventDrivenSource;
 import org.apache.flume.conf.Configurable;
 import org.apache.flume.source.AbstractSource;
 import org.keedio.flume.source.watchdir.CleanRemovedEventsProcessingThread;
+import org.keedio.flume.source.watchdir.CoalescingWatchDirListener;
 import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.InodeTable;
 import org.keedio.flume.source.watchdir.WatchDirEvent;
 import org.keedio.flume.source.watchdir.WatchDirException;
 import org.keedio.flume.source.watchdir.WatchDirFileSet;
@@ -51,15 +56,15 @@ import org.keedio.flume.source.watchdir.WatchDirObserver;
 import org.keedio.flume.source.watchdir.listener.LineReadListener;
 import org.keedio.flume.source.watchdir.metrics.MetricsController;
 import org.keedio.flume.source.watchdir.metrics.MetricsEvent;
-import org.keedio.flume.source.watchdir.util.Util;
+import org.keedio.flume.source.watchdir.util.InodeResolver;
 import org.mortbay.log.Log;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Preconditions;
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.ByteCharSequence;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.ChannelAccessor;
 
 
@@ -88,7 +93,9 @@ public class FileEventSourceListener extends AbstractSource implements
     private static final String BASE_HEADER = "basenameHeader";
     private static final String BASE_HEADER_NAME = "basenameHeaderKey";
     private static final String EVENTS_CAPACITY = "eventsCapacity";
+    private static final String BATCH_BYTES = "batchBytes";
     private static final String AUTOCOMMIT_TIME = "autocommittime";
+    private static final String MAX_LATENCY = "maxLatencyMillis";
     private static final String MAX_CHARS = "maxcharsonmessage";
     private static final String MULTILINE_ACTIVE = "multilineActive";
     private static final String MULTILINE_REGEX = "multilineRegex";
@@ -97,6 +104,17 @@ public class FileEventSourceListener extends AbstractSource implements
     private static final String MULTILINE_ASIGN_TO_PREVIOUS_LINE = "multilineAssignToPreviousLine";
     private static final String MULTILINE_FLUSH_ENTIRE_BUFFER = "multilineFlushEntireBuffer";
     private static final String MULTILINE_EVENT_LINE_SEPARATOR = "multilineEventLineSeparator";
+    private static final String CHARSET = "charset";
+    private static final String OUTPUT_CHARSET = "outputCharset";
+    private static final String MAX_WORKERS = "maxworkers";
+    private static final String MODIFY_DEBOUNCE = "modifyDebounceMillis";
+    private static final String FINGERPRINT_BYTES = "fingerprintbytes";
+    private static final String MAX_OPEN_FILES = "maxopenfiles";
+    private static final String CLEAN_SWEEP_INTERVAL = "cleansweepinterval";
+    private static final String BACKOFF_SLEEP_INCREMENT = "backoffSleepIncrement";
+    private static final String MAX_BACKOFF = "maxBackoff";
+    private static final String FSYNC_POLICY = "fsyncpolicy";
+    private static final String FSYNC_INTERVAL = "fsyncinterval";
     private static final String LINE_FEED = "\n";
     private static final Logger LOGGER = LoggerFactory
 
@@ -110,6 +128,7 @@ public class FileEventSourceListener extends AbstractSource implements
     protected int bufferSize = 1024;
     protected String suffix;
     protected Map<String, InodeInfo> filesObserved;
+    protected InodeResolver resolver = new InodeResolver();
     protected SerializeFilesThread ser;
     private boolean followLinks;
     protected boolean fileHeader;
@@ -117,10 +136,22 @@ public class FileEventSourceListener extends AbstractSource implements
     protected boolean baseHeader;
     protected String baseHeaderName;
     protected int eventsCapacity;
+    protected long batchBytes;
     protected int autocommittime;
+    protected long maxLatencyMillis;
     protected int maxchars;
+    protected int fingerprintBytes;
+    protected int maxOpenFiles;
+    protected long backoffSleepIncrement;
+    protected long maxBackoff;
     protected FileEventHelper helper;
+    protected CleanRemovedEventsProcessingThread cleaner;
     private Map<String, Lock> locks;
+    private InodeWorkerPool workers;
+    private int modifyDebounceMillis;
+    private CoalescingWatchDirListener dispatcher;
+    // Inodes with a read submitted that has not started yet
+    private final Set<String> pendingReads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 
     private Thread autoCommitThread = null;
@@ -138,6 +169,9 @@ public class FileEventSourceListener extends AbstractSource implements
     protected Pattern patternMultilineFirstLineRegex;
     protected String multilineEventLineSeparator;
 
+    //Charset of the event bodies
+    protected Charset outputCharset = Charset.defaultCharset();
+
 
 
 
@@ -184,8 +218,25 @@ public class FileEventSourceListener extends AbstractSource implements
         baseHeader = context.getBoolean(BASE_HEADER) == null ? false : context.getBoolean(BASE_HEADER);
         baseHeaderName = context.getString(BASE_HEADER_NAME);
         eventsCapacity = context.getInteger(EVENTS_CAPACITY) == null ? 1000 : context.getInteger(EVENTS_CAPACITY);
+        batchBytes = context.getLong(BATCH_BYTES) == null ? 8388608L : context.getLong(BATCH_BYTES);
+        Preconditions.checkArgument(batchBytes >= 0, "batchBytes must be 0 (no limit) or positive");
         autocommittime = context.getInteger(AUTOCOMMIT_TIME) == null ? 10000 : context.getInteger(AUTOCOMMIT_TIME) * 1000;
+        maxLatencyMillis = context.getInteger(MAX_LATENCY) == null ? Math.min(1000, Math.max(1, autocommittime)) : context.getInteger(MAX_LATENCY);
+        Preconditions.checkArgument(maxLatencyMillis > 0, "maxLatencyMillis must be greater than 0");
         maxchars = context.getInteger(MAX_CHARS) == null ? 100000 : context.getInteger(MAX_CHARS);
+        outputCharset = getCharset(context.getString(OUTPUT_CHARSET));
+        maxWorkers = context.getInteger(MAX_WORKERS) == null ? 10 : context.getInteger(MAX_WORKERS);
+        Preconditions.checkArgument(maxWorkers > 0, "maxworkers must be greater than 0");
+        modifyDebounceMillis = context.getInteger(MODIFY_DEBOUNCE) == null ? 500 : context.getInteger(MODIFY_DEBOUNCE);
+        fingerprintBytes = context.getInteger(FINGERPRINT_BYTES) == null ? 1024 : context.getInteger(FINGERPRINT_BYTES);
+        Preconditions.checkArgument(fingerprintBytes >= 0, "fingerprintbytes must be 0 (disabled) or positive");
+        maxOpenFiles = context.getInteger(MAX_OPEN_FILES) == null ? FileTailReader.DEFAULT_MAX_OPEN : context.getInteger(MAX_OPEN_FILES);
+        Preconditions.checkArgument(maxOpenFiles > 0, "maxopenfiles must be greater than 0");
+        int cleanSweepInterval = context.getInteger(CLEAN_SWEEP_INTERVAL) == null ? 3600 : context.getInteger(CLEAN_SWEEP_INTERVAL);
+        Preconditions.checkArgument(cleanSweepInterval >= 0, "cleansweepinterval must be 0 (disabled) or positive");
+        backoffSleepIncrement = context.getInteger(BACKOFF_SLEEP_INCREMENT) == null ? 250 : context.getInteger(BACKOFF_SLEEP_INCREMENT);
+        maxBackoff = context.getInteger(MAX_BACKOFF) == null ? 4000 : context.getInteger(MAX_BACKOFF);
+        Preconditions.checkArgument(backoffSleepIncrement > 0 && maxBackoff >= backoffSleepIncrement, "backoffSleepIncrement must be greater than 0 and maxBackoff not less than it");
 
         //Multiline
         multilineActive = context.getBoolean(MULTILINE_ACTIVE) == null ? false : context.getBoolean(MULTILINE_ACTIVE);
@@ -210,12 +261,15 @@ public class FileEventSourceListener extends AbstractSource implements
         // Lanzamos el proceso de serializacion
         if (ser == null)
             ser = new SerializeFilesThread(this, pathToSerialize, timeToSer);
+        FsyncPolicy fsyncPolicy = FsyncPolicy.fromString(context.getString(FSYNC_POLICY));
+        int fsyncInterval = context.getInteger(FSYNC_INTERVAL) == null ? 5 : context.getInteger(FSYNC_INTERVAL);
+        ser.setFsyncPolicy(fsyncPolicy, fsyncInterval * 1000L);
         
         try {
             filesObserved = ser.getMapFromSerFile();
         } catch (Exception e) {
             LOGGER.info("No se pudo deserializar el fichero.");
-            filesObserved = new HashMap<String, InodeInfo>();
+            filesObserved = new InodeTable();
         }
 
         // Creamos los filesets
@@ -228,6 +282,8 @@ public class FileEventSourceListener extends AbstractSource implements
         while (it.hasNext()) {
             Map<String, String> aux = (Map<String, String>) getCriterias.get(it.next());
             WatchDirFileSet auxSet = new WatchDirFileSet(aux.get(DIR), globalWhiteList != null ? globalWhiteList : aux.get(WHITELIST), globalBlackList != null ? globalBlackList : aux.get(BLACKLIST), readOnStartUp, followLinks);
+            auxSet.setCharset(getCharset(aux.get(CHARSET)));
+            auxSet.configureObserver(aux);
 
             fileSets.add(auxSet);
         }
@@ -237,12 +293,29 @@ public class FileEventSourceListener extends AbstractSource implements
 
         serializeFilesThread = new Thread(ser,"SerializeFilesThread");
         serializeFilesThread.start();
-        autoCommitThread =  new Thread(new AutocommitThread(this, autocommittime),"AutocommitThread");
+        autoCommitThread =  new Thread(new AutocommitThread(this, maxLatencyMillis, autocommittime),"AutocommitThread");
 
-        cleanRemovedEventsProcessingThread = new Thread(new CleanRemovedEventsProcessingThread(this, autocommittime),"CleanRemovedEventsProcessingThread");
+        // Los ficheros borrados se olvidan autocommittime despues del evento, da tiempo a leer las lineas pendientes
+        cleaner = new CleanRemovedEventsProcessingThread(this, autocommittime, cleanSweepInterval * 1000L);
+        cleanRemovedEventsProcessingThread = new Thread(cleaner,"CleanRemovedEventsProcessingThread");
         cleanRemovedEventsProcessingThread.start();
     }
 
+    /**
+     * Validates a configured charset. Lines are split looking for the '\n' byte, so only charsets
+     * that encode ASCII as single bytes can be used (UTF-16 or UTF-32 are not supported).
+     * @return the charset, or the default charset of the JVM if no charset is configured
+     */
+    private static Charset getCharset(String name) {
+        if (name == null || "".equals(name)) {
+            return Charset.defaultCharset();
+        }
+        Preconditions.checkArgument(Charset.isSupported(name), "Unsupported charset: " + name);
+        Charset charset = Charset.forName(name);
+        Preconditions.checkArgument(ByteCharSequence.isAsciiCompatible(charset), "Charset " + name + " is not ASCII compatible");
+        return charset;
+    }
+
     public static Map<String, Map<String, String>> getMapProperties(Map<String, String> all) {
 
         Map<String, Map<String, String>> map = new HashMap<String, Map<String, String>>();
@@ -274,12 +347,19 @@ public class FileEventSourceListener extends AbstractSource implements
         LOGGER.info("Source Starting..");
         monitor = new HashSet<WatchDirObserver>();
 
+        // Las modificaciones de un fichero que llegan seguidas se agrupan en una sola lectura
+        WatchDirListener target = this;
+        if (modifyDebounceMillis > 0) {
+            dispatcher = new CoalescingWatchDirListener(this, modifyDebounceMillis);
+            target = dispatcher;
+        }
+
         try {
             Iterator<WatchDirFileSet> it = fileSets.iterator();
 
             while (it.hasNext()) {
-                WatchDirObserver aux = new WatchDirObserver(it.next());
-                aux.addWatchDirListener(this);
+                WatchDirObserver aux = WatchDirObserver.newObserver(it.next());
+                aux.addWatchDirListener(target);
 
                 Log.debug("Lanzamos el proceso");
                 new Thread(aux).start();
@@ -296,10 +376,11 @@ public class FileEventSourceListener extends AbstractSource implements
         super.start();
         
         if (helper == null) {//during tests a mock helper instance is previosly configured
-            ChannelAccessor.init(getChannelProcessor());
-            helper = new FileEventHelper(this);
+            helper = new FileEventHelper(this, new ChannelAccessor(getChannelProcessor()));
         }
 
+        workers = new InodeWorkerPool(maxWorkers);
+
 
         autoCommitThread.start();
 
@@ -308,6 +389,18 @@ public class FileEventSourceListener extends AbstractSource implements
     @Override
     public void stop() {
         LOGGER.info("Stopping source");
+        if (helper != null) {
+            // Los lotes que el canal rechaza no se reintentan, se volveran a leer en el siguiente arranque
+            helper.stopDelivery();
+        }
+        if (dispatcher != null) {
+            LOGGER.info("Modify events coalesced: " + dispatcher.getCoalesced());
+            dispatcher.close();
+        }
+        if (workers != null) {
+            // Las lecturas en curso terminan antes de guardar las posiciones
+            workers.shutdown(autocommittime);
+        }
         try {
             ser.fromMapToSerFile();
         } catch (Exception e) {
@@ -324,6 +417,9 @@ public class FileEventSourceListener extends AbstractSource implements
         if (cleanRemovedEventsProcessingThread != null && cleanRemovedEventsProcessingThread.isAlive()){
             cleanRemovedEventsProcessingThread.interrupt();
         }
+        if (helper != null) {
+            helper.close();
+        }
         
         super.stop();
 
@@ -342,23 +438,40 @@ public class FileEventSourceListener extends AbstractSource implements
             switch (event.getType()) {
 
                 case "ENTRY_CREATE":
-                    inode = Util.getInodeID(event.getPath());
+                    // Puede ser otro fichero con el mismo nombre
+                    resolver.invalidate(event.getPath());
+                    inode = resolver.getInodeKey(event.getPath());
                     info = inodes.get(inode);
 
+                    // Inodo reutilizado por otro fichero (el anterior se borro): no es un renombrado
+                    if (info != null && !event.getPath().equals(info.getFileName()) && !sameContent(event.getPath(), info)) {
+                        LOGGER.info("Inode " + inode + " of " + info.getFileName() + " reused by " + event.getPath());
+                        forgetInode(inode, info);
+                        info = null;
+                    }
+
                     //Comprobamos si el inodo no existia, en cuyo caso se crea. Si ya existia viene de una renombrado.
-                    if (!inodes.containsKey(Util.getInodeID(event.getPath()))) {
+                    if (info == null) {
                         if (event.getSet().haveToProccess(event.getPath())) {
-                            InodeInfo inf = new InodeInfo(0L, event.getPath());
+                            long start = 0L;
+                            if (event.isRescan() && !event.getSet().isReadOnStartup()) {
+                                // Revision del directorio tras perder eventos: el fichero puede ser anterior, se lee lo que se escriba despues
+                                start = resolver.getAttributes(event.getPath()).getSize();
+                                LOGGER.info("File " + event.getPath() + " found rescanning the directory, reading it from byte " + start);
+                            }
+                            InodeInfo inf = new InodeInfo(start, event.getPath());
+                            inf.setCharset(event.getSet().getCharset());
                             
                             synchronized (inodes) {
                                 inodes.put(inode, inf);
                             }
+                            positionChanged(inode, inf);
                             metricsController.manage(new MetricsEvent(MetricsEvent.NEW_FILE));
                             if (event.getSet().haveToProccess(event.getPath())) {
                                 if (helper == null) {
                                     LOGGER.debug("HELPER NULL Process EVENTO NEW: " + event.getPath() + " inodo: " + inode);
                                 }
-                                helper.process(inode);
+                                processInode(inode);
                             }
                             LOGGER.debug("EVENTO NEW: " + event.getPath() + " inodo: " + inode);
                         } else {
@@ -374,6 +487,12 @@ public class FileEventSourceListener extends AbstractSource implements
                         LOGGER.debug("EVENTO RENAME: " + oldPth + " a " + event.getPath() + " inodo: " + inode);
 
                         if (event.getPath().equals(oldPth)) {
+                            // Fichero ya observado (arranque o revision del directorio tras perder eventos), se leen las lineas nuevas.
+                            // El charset no se guarda en el checkpoint, viene de la configuracion del directorio
+                            info.setCharset(event.getSet().getCharset());
+                            if (event.getSet().haveToProccess(oldPth) && resolver.getAttributes(oldPth).getSize() > info.getPosition()) {
+                                processInode(inode);
+                            }
                             break;
                         }
 
@@ -381,7 +500,9 @@ public class FileEventSourceListener extends AbstractSource implements
                         if (event.getSet().haveToProccess(oldPth)) {
                             LOGGER.debug("Processing pending lines for inode:" + inode);
                             info.setFileName(event.getPath());
-                            helper.process(inode);
+                            info.setCharset(event.getSet().getCharset());
+                            processRenamedInode(inode, info);
+                            break;
                         }
                         
                         /* 
@@ -413,14 +534,14 @@ public class FileEventSourceListener extends AbstractSource implements
                         org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventSourceListenerStaticTest
                         para comprobar de forma automatica esta condición.
                         */
-                        synchronized (inodes) {
-                            inodes.remove(inode);
-                        }
+                        forgetInode(inode, info);
                     }
                     // Notificamos nuevo fichero creado
                     break;
                 case "ENTRY_MODIFY":
-                    inode = Util.getInodeID(event.getPath());
+                    // El inodo no cambia al modificar el fichero, sale de la cache sin stat
+                    resolver.modified(event.getPath());
+                    inode = resolver.getInodeKey(event.getPath());
                     info = inodes.get(inode);
 
                     if (info == null) {
@@ -429,21 +550,28 @@ public class FileEventSourceListener extends AbstractSource implements
                         if (event.getSet().haveToProccess(event.getPath())) {
                             LOGGER.debug("Fichero no catalogado, se añade a la lista de ficheros monitorizados: " + event.getPath());
                             InodeInfo ii = new InodeInfo(0L, event.getPath());
+                            ii.setCharset(event.getSet().getCharset());
                             synchronized (inodes) {
                                 inodes.put(inode, ii);
                             }
-                            helper.process(inode);
+                            positionChanged(inode, ii);
+                            processInode(inode);
                         }
                         break;
                     } else if (event.getSet().haveToProccess(event.getPath())) {
                         LOGGER.debug("Processing modified file " + event.getPath() + " with inode: " + inode);
-                        helper.process(inode);
+                        info.setCharset(event.getSet().getCharset());
+                        processInode(inode);
                     }
                     LOGGER.debug("EVENTO MODIFY: " + event.getPath() + " inodo: " + inode);
                     break;
                 case "ENTRY_DELETE":
-                    // No podemos obtener el inodo, el fichero ya no existe.
-                    LOGGER.debug("EVENTO DELETE: " + event.getPath());
+                    // No podemos obtener el inodo, el fichero ya no existe. Se usa el que tenia la ruta en la cache
+                    inode = resolver.forget(event.getPath());
+                    if (cleaner != null) {
+                        cleaner.fileDeleted(event.getPath(), inode);
+                    }
+                    LOGGER.debug("EVENTO DELETE: " + event.getPath() + " inodo: " + inode);
                     break;
                 default:
                     LOGGER.info("EVENTO UNKNOWN" + event.getPath() + " no se trata.");
@@ -455,6 +583,124 @@ public class FileEventSourceListener extends AbstractSource implements
         }
     }
 
+    /**
+     * Reads the new lines of the inode. The reading is done by the worker pool, so files are read
+     * concurrently, or in the calling thread if the source has not been started. A read is not
+     * submitted if the inode already has one waiting to start.
+     */
+    private void processInode(final String inode) {
+        if (workers == null) {
+            helper.process(inode);
+            return;
+        }
+        if (!pendingReads.add(inode)) {
+            // The read already waiting will find the new lines
+            return;
+        }
+        workers.submit(inode, new Runnable() {
+            @Override
+            public void run() {
+                pendingReads.remove(inode);
+                helper.process(inode);
+            }
+        });
+    }
+
+    /**
+     * Reads the pending lines of a rotated file and stops observing it. Both steps are done in
+     * order with the rest of the readings of the inode.
+     */
+    private void processRenamedInode(final String inode, final InodeInfo info) {
+        if (workers == null) {
+            helper.process(inode);
+            forgetInode(inode, info);
+            return;
+        }
+        workers.submit(inode, new Runnable() {
+            @Override
+            public void run() {
+                helper.process(inode);
+                forgetInode(inode, info);
+            }
+        });
+    }
+
+    /**
+     * Stops observing the inode of a file that does not exist anymore. It is done in order with the
+     * readings of the inode, so a read in progress or waiting ends before the channel is closed.
+     */
+    public void forgetRemovedInode(final String inode, final InodeInfo info) {
+        if (workers == null) {
+            forgetInode(inode, info);
+            return;
+        }
+        workers.submit(inode, new Runnable() {
+            @Override
+            public void run() {
+                forgetInode(inode, info);
+            }
+        });
+    }
+
+    /**
+     * Stops observing an inode, unless it has been observed again meanwhile with a new file.
+     */
+    public void forgetInode(String inode, InodeInfo info) {
+        Map<String, InodeInfo> inodes = getFilesObserved();
+        synchronized (inodes) {
+            // The inode could have been observed again meanwhile, with a new file
+            if (inodes.get(inode) == info) {
+                inodes.remove(inode);
+                inodeRemoved(inode, info);
+            }
+        }
+        if (helper != null) {
+            helper.closeInode(inode);
+        }
+    }
+
+    /**
+     * @return false if the first bytes of the file are not the ones of the fingerprint of the inode
+     */
+    private boolean sameContent(String path, InodeInfo info) {
+        int length = info.getFingerprintLength();
+        if (length == 0) {
+            return true;
+        }
+        try {
+            return FileTailReader.fingerprint(path, length) == info.getFingerprint();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to check the fingerprint of " + path + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Records the new committed position of an inode in the checkpoint journal.
+     */
+    public void positionChanged(String inode, InodeInfo info) {
+        if (ser != null) {
+            // Los eventos de un inodo pueden entregarse despues de dejar de observarlo
+            synchronized (info) {
+                if (!info.isRemoved()) {
+                    ser.positionChanged(inode, info);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records in the checkpoint journal that an inode is not observed anymore.
+     */
+    public void inodeRemoved(String inode, InodeInfo info) {
+        synchronized (info) {
+            info.setRemoved(true);
+            if (ser != null) {
+                ser.inodeRemoved(inode);
+            }
+        }
+    }
+
     public synchronized Map<String, InodeInfo> getFilesObserved() {
         return filesObserved;
     }
@@ -0,0 +1,410 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.DirectBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental reader of the monitored files.
+ * <p>
+ * A channel is kept open per inode between modify events, so tailing a file costs a positional
+ * read of the appended bytes instead of an open/seek/close sequence. Lines are split scanning the
+ * bytes for '\n', only complete lines are returned.
+ * <p>
+ * At most maxOpen channels are kept: when a new one is opened the least recently used is closed,
+ * and {@link #closeIdle(long)} closes the ones not used for a while. A channel being read is closed
+ * when the read ends. The file is opened again on its next read.
+ */
+public class FileTailReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileTailReader.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /** Channels kept open by default */
+    public static final int DEFAULT_MAX_OPEN = 1000;
+
+    /** Returned as fingerprint of files shorter than the bytes requested, a CRC32 is never negative */
+    public static final long NO_FINGERPRINT = -1L;
+
+    /**
+     * Receives every complete line read.
+     */
+    public interface LineHandler {
+        /**
+         * @param line       line content without the line terminator
+         * @param nextOffset byte offset just after the line terminator
+         */
+        void onLine(byte[] line, long nextOffset) throws Exception;
+    }
+
+    private final DirectBufferPool buffers;
+    private final int maxOpen;
+    // Canales en orden de uso, el primero es el que lleva mas tiempo sin usarse. Protegido por su lock
+    private final LinkedHashMap<String, OpenChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+
+    public FileTailReader() {
+        this(DEFAULT_MAX_OPEN);
+    }
+
+    /**
+     * @param maxOpen max number of channels kept open
+     */
+    public FileTailReader(int maxOpen) {
+        this(new DirectBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS), maxOpen);
+    }
+
+    public FileTailReader(DirectBufferPool buffers) {
+        this(buffers, DEFAULT_MAX_OPEN);
+    }
+
+    public FileTailReader(DirectBufferPool buffers, int maxOpen) {
+        if (maxOpen <= 0) {
+            throw new IllegalArgumentException("maxOpen must be greater than 0");
+        }
+        this.buffers = buffers;
+        this.maxOpen = maxOpen;
+    }
+
+    /**
+     * Reads the complete lines found in the file after the given offset.
+     * @param inode   inode of the file, used to reuse the open channel
+     * @param path    current path of the file, used only if the channel has to be opened
+     * @param offset  byte offset where the first unread line starts
+     * @param handler receives the lines in order
+     * @return byte offset just after the last complete line read
+     */
+    public long readLines(String inode, String path, long offset, LineHandler handler) throws Exception {
+        return readLines(inode, path, offset, -1, handler);
+    }
+
+    /**
+     * Reads the complete lines found in the file after the given offset.
+     * @param size size of the file if the caller already knows it, so it is not read again from
+     *             the channel; -1 if unknown. The lines are read up to the end of the file anyway
+     * @see #readLines(String, String, long, LineHandler)
+     */
+    public long readLines(String inode, String path, long offset, long size, LineHandler handler) throws Exception {
+        OpenChannel open = acquire(inode, path);
+        try {
+            return read(open.channel, inode, path, offset, size, handler);
+        } finally {
+            release(open);
+        }
+    }
+
+    private long read(FileChannel channel, String inode, String path, long offset, long size, LineHandler handler) throws Exception {
+        if (size < 0) {
+            size = channel.size();
+        }
+        if (size == offset) {
+            return offset;
+        } else if (size < offset) {
+            LOGGER.warn(String.format("File %s(%s) is smaller (%d) than the position already read (%d)", path, inode, size, offset));
+            return offset;
+        }
+
+        ByteBuffer buffer = buffers.acquire();
+        LineAccumulator pending = new LineAccumulator();
+        long consumed = offset;
+        long readPosition = offset;
+
+        try {
+            int n;
+            while ((n = channel.read(buffer, readPosition)) > 0) {
+                // Los metodos de Buffer se llaman como Buffer: compilado con JDK 9+ se enlazarian
+                // los de ByteBuffer, que no existen en Java 8 (NoSuchMethodError)
+                ((Buffer) buffer).flip();
+
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buffer.get(i) == '\n') {
+                        consumed = readPosition + i + 1;
+                        handler.onLine(pending.take(buffer, start, i), consumed);
+                        start = i + 1;
+                    }
+                }
+                pending.append(buffer, start, n);
+
+                readPosition += n;
+                ((Buffer) buffer).clear();
+            }
+        } finally {
+            buffers.release(buffer);
+        }
+
+        return consumed;
+    }
+
+    /**
+     * @return size of the file, using the channel kept for the inode
+     */
+    public long size(String inode, String path) throws IOException {
+        OpenChannel open = acquire(inode, path);
+        try {
+            return open.channel.size();
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * @return fingerprint of the first length bytes of the file, using the channel kept for the inode
+     * @see #fingerprint(FileChannel, int)
+     */
+    public long fingerprint(String inode, String path, int length) throws IOException {
+        OpenChannel open = acquire(inode, path);
+        try {
+            return fingerprint(open.channel, length);
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * @return fingerprint of the first length bytes of the file
+     * @see #fingerprint(FileChannel, int)
+     */
+    public static long fingerprint(String path, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return fingerprint(channel, length);
+        }
+    }
+
+    /**
+     * @return CRC32 of the first length bytes of the file, or {@link #NO_FINGERPRINT} if the file
+     * has less bytes (it can not be the same content)
+     */
+    static long fingerprint(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                return NO_FINGERPRINT;
+            }
+            position += n;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, length);
+        return crc.getValue();
+    }
+
+    /**
+     * @return true if a channel is kept open for the inode, the file has already been read with it
+     */
+    public boolean isOpen(String inode) {
+        synchronized (channels) {
+            // containsKey no cambia el orden de uso
+            return channels.containsKey(inode);
+        }
+    }
+
+    /**
+     * Closes the channel kept for the inode, if any.
+     */
+    public void close(String inode) {
+        List<OpenChannel> closed = new ArrayList<>();
+        synchronized (channels) {
+            OpenChannel open = channels.remove(inode);
+            if (open != null) {
+                retire(open, closed);
+            }
+        }
+        closeQuietly(closed);
+    }
+
+    /**
+     * Closes the channels of the inodes that are no longer observed.
+     */
+    public void retain(Collection<String> observedInodes) {
+        List<OpenChannel> closed = new ArrayList<>();
+        synchronized (channels) {
+            Iterator<OpenChannel> it = channels.values().iterator();
+            while (it.hasNext()) {
+                OpenChannel open = it.next();
+                if (!observedInodes.contains(open.inode)) {
+                    it.remove();
+                    retire(open, closed);
+                }
+            }
+        }
+        closeQuietly(closed);
+    }
+
+    /**
+     * Closes the channels not used in the last idleMillis.
+     */
+    public void closeIdle(long idleMillis) {
+        long limit = System.currentTimeMillis() - idleMillis;
+        List<OpenChannel> closed = new ArrayList<>();
+        synchronized (channels) {
+            Iterator<OpenChannel> it = channels.values().iterator();
+            while (it.hasNext()) {
+                OpenChannel open = it.next();
+                if (open.users == 0 && open.lastUsed <= limit) {
+                    it.remove();
+                    retire(open, closed);
+                }
+            }
+        }
+        closeQuietly(closed);
+    }
+
+    public void closeAll() {
+        retain(java.util.Collections.<String>emptySet());
+    }
+
+    int getOpenChannels() {
+        synchronized (channels) {
+            return channels.size();
+        }
+    }
+
+    /**
+     * @return the channel of the inode, opened if it is not kept. It is not closed until it is released
+     */
+    private OpenChannel acquire(String inode, String path) throws IOException {
+        synchronized (channels) {
+            OpenChannel open = channels.get(inode);
+            if (open != null) {
+                open.users++;
+                return open;
+            }
+        }
+
+        // Se abre sin el lock, no bloquea las lecturas de otros ficheros
+        OpenChannel open = new OpenChannel(inode, FileChannel.open(Paths.get(path), StandardOpenOption.READ));
+        List<OpenChannel> closed = new ArrayList<>();
+        synchronized (channels) {
+            open.users++;
+            OpenChannel previous = channels.put(inode, open);
+            if (previous != null) {
+                retire(previous, closed);
+            }
+            // Se cierran los que llevan mas tiempo sin usarse
+            Iterator<OpenChannel> it = channels.values().iterator();
+            while (channels.size() > maxOpen && it.hasNext()) {
+                OpenChannel eldest = it.next();
+                if (eldest != open) {
+                    it.remove();
+                    retire(eldest, closed);
+                }
+            }
+        }
+        closeQuietly(closed);
+        return open;
+    }
+
+    private void release(OpenChannel open) {
+        boolean close;
+        synchronized (channels) {
+            open.users--;
+            open.lastUsed = System.currentTimeMillis();
+            close = open.retired && open.users == 0;
+        }
+        if (close) {
+            closeQuietly(open.inode, open.channel);
+        }
+    }
+
+    /**
+     * Marks a channel removed from the map to be closed, now if it is not being read or when the
+     * read ends. Called with the lock held.
+     */
+    private static void retire(OpenChannel open, List<OpenChannel> closed) {
+        open.retired = true;
+        if (open.users == 0) {
+            closed.add(open);
+        }
+    }
+
+    private static void closeQuietly(List<OpenChannel> closed) {
+        for (OpenChannel open : closed) {
+            closeQuietly(open.inode, open.channel);
+        }
+    }
+
+    private static void closeQuietly(String inode, FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Error closing channel of inode " + inode, e);
+        }
+    }
+
+    /**
+     * Channel kept for an inode. The fields but the channel are protected by the lock of the map.
+     */
+    private static final class OpenChannel {
+        final String inode;
+        final FileChannel channel;
+        int users;
+        long lastUsed = System.currentTimeMillis();
+        boolean retired;
+
+        OpenChannel(String inode, FileChannel channel) {
+            this.inode = inode;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Bytes of a line split between two buffer reads.
+     */
+    private static final class LineAccumulator {
+
+        private byte[] bytes = new byte[0];
+        private int length;
+
+        void append(ByteBuffer buffer, int from, int to) {
+            int count = to - from;
+            if (count <= 0) {
+                return;
+            }
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + count, bytes.length * 2));
+            }
+            ((Buffer) buffer).position(from);
+            buffer.get(bytes, length, count);
+            length += count;
+        }
+
+        /**
+         * Returns the pending bytes followed by buffer[from, to), without a trailing '\r'.
+         */
+        byte[] take(ByteBuffer buffer, int from, int to) {
+            int total = length + to - from;
+            boolean carriageReturn = total > 0 && (to > from ? buffer.get(to - 1) : bytes[length - 1]) == '\r';
+            if (carriageReturn) {
+                total--;
+            }
+
+            byte[] line = new byte[total];
+            int fromPending = Math.min(length, total);
+            System.arraycopy(bytes, 0, line, 0, fromPending);
+            if (total > fromPending) {
+                ((Buffer) buffer).position(from);
+                buffer.get(line, fromPending, total - fromPending);
+            }
+
+            length = 0;
+            return line;
+        }
+    }
+}
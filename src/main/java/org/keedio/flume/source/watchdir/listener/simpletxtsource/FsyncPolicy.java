@@ -0,0 +1,38 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+/**
+ * When the checkpoint files are forced to disk (fsyncpolicy option).
+ */
+public enum FsyncPolicy {
+
+    /** After every write, nothing is lost if the host crashes */
+    ALWAYS,
+    /** At most once every fsyncinterval seconds */
+    INTERVAL,
+    /** Never, the operating system decides. A host crash can lose the last positions */
+    NEVER;
+
+    /**
+     * @param name name of the policy, case insensitive. Null or empty for the default (interval)
+     */
+    public static FsyncPolicy fromString(String name) {
+        if (name == null || "".equals(name)) {
+            return INTERVAL;
+        }
+        return valueOf(name.toUpperCase());
+    }
+
+    /**
+     * @return true if a write done now has to be forced to disk
+     */
+    public boolean shouldSync(long lastSyncMillis, long intervalMillis, long now) {
+        switch (this) {
+            case ALWAYS:
+                return true;
+            case INTERVAL:
+                return now - lastSyncMillis >= intervalMillis;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of threads that read the observed files. Tasks of different inodes run concurrently, while
+ * tasks of the same inode run one after another in the order they were submitted, so the lines of
+ * a file are always read in order.
+ */
+public class InodeWorkerPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InodeWorkerPool.class);
+
+    private final ExecutorService executor;
+
+    // Tasks waiting for each inode. An inode is in the map while a worker is draining its tasks.
+    private final Map<String, Deque<Runnable>> pending = new HashMap<String, Deque<Runnable>>();
+
+    public InodeWorkerPool(int maxWorkers) {
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(maxWorkers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileReaderWorker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Submits a task for the inode. It will run after every task previously submitted for the same inode.
+     */
+    public void submit(final String inode, Runnable task) {
+        synchronized (pending) {
+            Deque<Runnable> queue = pending.get(inode);
+            if (queue != null) {
+                // A worker is already running the tasks of the inode, it will run this one too
+                queue.add(task);
+                return;
+            }
+            queue = new ArrayDeque<Runnable>();
+            queue.add(task);
+            pending.put(inode, queue);
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain(inode);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Pool stopped, inode " + inode + " will not be processed");
+            synchronized (pending) {
+                pending.remove(inode);
+            }
+        }
+    }
+
+    private void drain(String inode) {
+        while (true) {
+            Runnable task;
+            synchronized (pending) {
+                task = pending.get(inode).poll();
+                if (task == null) {
+                    pending.remove(inode);
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } catch (Throwable e) {
+                // Also errors (a huge line, a regex too deep): if the drain ended here the inode would
+                // stay pending and its next tasks would only be queued, the file would not be read again
+                LOGGER.error("Error processing inode " + inode, e);
+            }
+        }
+    }
+
+    /**
+     * Number of inodes with tasks running or waiting.
+     */
+    public int getPendingInodes() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the running ones to finish.
+     */
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("File reader workers did not finish in " + timeoutMillis + " ms");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
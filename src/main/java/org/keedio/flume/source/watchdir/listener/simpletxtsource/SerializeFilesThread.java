@@ -3,14 +3,18 @@ package org.keedio.flume.source.watchdir.listener.simpletxtsource;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.io.FileUtils;
 import org.keedio.flume.source.watchdir.InodeInfo;
-import org.keedio.flume.source.watchdir.listener.xmlsource.WatchDirXMLWinEventSourceListener;
+import org.keedio.flume.source.watchdir.InodeTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +23,10 @@ public class SerializeFilesThread implements Runnable {
     private FileEventSourceListener listener;
     private String path;
     private int seconds;
+    private CheckpointJournal journal;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+    // El checkpoint se tiene que escribir aunque no haya cambios (formato antiguo)
+    private volatile boolean rewrite;
     private static final Logger LOGGER = LoggerFactory
             .getLogger(SerializeFilesThread.class);
 
@@ -26,13 +34,45 @@ public class SerializeFilesThread implements Runnable {
         this.listener = listener;
         this.path = path;
         this.seconds = seconds;
+        this.journal = path == null ? null : new CheckpointJournal(path);
+    }
+
+    /**
+     * Sets when the checkpoint and the journal are forced to disk. The checkpoint is written every
+     * timetoser seconds, so it is forced on every write unless the policy is never; the interval
+     * applies to the journal.
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this.fsyncPolicy = fsyncPolicy;
+        if (journal != null) {
+            journal.setFsyncPolicy(fsyncPolicy, fsyncIntervalMillis);
+        }
+    }
+
+    /**
+     * Records the new position of an inode in the journal.
+     */
+    public void positionChanged(String inode, InodeInfo info) {
+        if (journal != null) {
+            journal.put(inode, info);
+        }
+    }
+
+    /**
+     * Records in the journal that an inode is not observed anymore. If the journal can not record
+     * it the whole checkpoint is written again, so the inode is not restored on the next start.
+     */
+    public void inodeRemoved(String inode) {
+        if (journal != null && !journal.remove(inode)) {
+            rewrite = true;
+        }
     }
 
     @Override
     public void run() {
         try {
             while (true) {
-                fromMapToSerFile();
+                checkpoint();
 
                 Thread.sleep(seconds * 1000);
             }
@@ -42,24 +82,49 @@ public class SerializeFilesThread implements Runnable {
 
     }
 
+    /**
+     * Forces the rename of the checkpoint to disk. Not every platform allows it, it is not an error.
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to sync directory " + dir + ": " + e.getMessage());
+        }
+    }
+
     public Map<String, InodeInfo> getMapFromSerFile() throws Exception {
         Map<String, InodeInfo> map = null;
+        File file = new File(path);
 
         try {
 
-            FileInputStream fis = new FileInputStream(path);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            map = (Map<String, InodeInfo>) ois.readObject();
+            if (!file.exists()) {
+                // Sin checkpoint, puede haber journal si se paro antes del primer checkpoint
+                map = new InodeTable();
+            } else if (CheckpointFormat.isLegacy(file)) {
+                // Fichero de versiones anteriores (serializacion java), se escribira en el formato nuevo en el siguiente checkpoint
+                map = CheckpointFormat.readLegacy(file);
+
+                map.get(map.keySet().toArray()[0]).getPosition();
+
+                LOGGER.info("Converting ser file written by an older version: " + path);
+                rewrite = true;
+            } else {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    map = CheckpointFormat.read(fis);
+                }
+            }
 
-            map.get(map.keySet().toArray()[0]).getPosition();
+            if (journal != null) {
+                journal.replay(map);
+            }
 
-            
-            
             LOGGER.info("Map deserialized from ser file: " + map);
         } catch (ClassCastException e) {
             LOGGER.error("El fichero de serializacion no es compatible. Se realiza backup del fichero y se creo un nuevo fichero vacío...");
-            FileUtils.copyFile(new File(path), new File(path + ".bck"));
-            FileUtils.forceDelete(new File(path));
+            FileUtils.copyFile(file, new File(path + ".bck"));
+            FileUtils.forceDelete(file);
 
             throw e;
         }
@@ -68,23 +133,67 @@ public class SerializeFilesThread implements Runnable {
 
     }
 
-    public void fromMapToSerFile() throws Exception {
-        LOGGER.info("fromMapToSerFile: writing ser file with the following content: " + listener.getFilesObserved());
+    /**
+     * Periodic checkpoint. Nothing is written if no position changed. While the journal has fewer
+     * changes than the checkpoint has entries it is only forced to disk, replaying it costs less
+     * than writing every idle entry again.
+     */
+    public void checkpoint() throws Exception {
+        File target = new File(path);
+        if (journal != null && target.exists() && !rewrite) {
+            long pending = journal.getPendingRecords();
+            if (pending == 0) {
+                LOGGER.debug("checkpoint: no position changed, nothing to write");
+                return;
+            }
+            if (pending < listener.getFilesObserved().size()) {
+                LOGGER.debug("checkpoint: " + pending + " changes kept in the journal");
+                journal.sync();
+                return;
+            }
+        }
+        fromMapToSerFile();
+    }
 
-        try {
-            FileUtils.copyFile(new File(path), new File(path + ".bck"));
-        } catch (Exception e) {
-            LOGGER.warn(e.getMessage());
+    /**
+     * Writes every entry in the checkpoint and deletes the journals. Nothing is written if the
+     * checkpoint is up to date.
+     */
+    public synchronized void fromMapToSerFile() throws Exception {
+        if (journal != null && journal.getPendingRecords() == 0 && new File(path).exists() && !rewrite) {
+            LOGGER.debug("fromMapToSerFile: ser file up to date");
+            return;
         }
 
-        FileOutputStream fos = new FileOutputStream(path);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
         Map<String, InodeInfo> inodes = listener.getFilesObserved();
-        
-        synchronized (inodes){
-            oos.writeObject(inodes);    
+        // Solo el numero de ficheros: el contenido de todo el mapa se construiria aunque no se escriba el debug
+        LOGGER.debug("fromMapToSerFile: writing ser file with " + inodes.size() + " files");
+
+        // Los cambios a partir de ahora van a un journal nuevo, los anteriores estaran en el checkpoint
+        List<File> journals = journal == null ? Collections.<File>emptyList() : journal.rotate();
+
+        // Se escribe en un temporal que sustituye al checkpoint con un rename atomico,
+        // una caida durante la escritura deja el checkpoint anterior intacto
+        File target = new File(path);
+        File tmp = new File(path + ".tmp");
+        boolean sync = fsyncPolicy != FsyncPolicy.NEVER;
+
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            CheckpointFormat.write(inodes, fos);
+            if (sync) {
+                fos.getChannel().force(true);
+            }
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (sync) {
+            syncDirectory(target.getAbsoluteFile().getParentFile());
         }
-        
+
+        if (journal != null) {
+            journal.delete(journals);
+        }
+        rewrite = false;
+
     }
 
 }
@@ -0,0 +1,186 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.flume.Event;
+import org.keedio.flume.source.watchdir.InodeInfo;
+
+/**
+ * Event of a line read from a file. It knows the file and the position after the line, so the
+ * committed position of the file moves when the event is delivered to the channel.
+ * <p>
+ * The headers are the immutable map shared by every event of the file. It is only copied when
+ * the headers of the event are modified, so the events of a line do not allocate headers.
+ */
+public class TailEvent implements Event {
+
+    private final String inode;
+    private final InodeInfo info;
+    private final long offset;
+    private final int epoch;
+    private byte[] body = new byte[0];
+    private Map<String, String> sharedHeaders = Collections.emptyMap();
+    private Map<String, String> headers;
+
+    public TailEvent(String inode, InodeInfo info, long offset, int epoch) {
+        this.inode = inode;
+        this.info = info;
+        this.offset = offset;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Sets headers that are not modified, shared with other events. They are copied if the headers
+     * of this event are modified.
+     */
+    public void setSharedHeaders(Map<String, String> sharedHeaders) {
+        this.sharedHeaders = sharedHeaders;
+        this.headers = null;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        if (headers == null) {
+            headers = new CopyOnWriteHeaders(sharedHeaders);
+        }
+        return headers;
+    }
+
+    @Override
+    public void setHeaders(Map<String, String> headers) {
+        this.headers = headers;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return body;
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        this.body = body == null ? new byte[0] : body;
+    }
+
+    public String getInode() {
+        return inode;
+    }
+
+    public InodeInfo getInfo() {
+        return info;
+    }
+
+    /**
+     * @return position of the file after the line of the event
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    @Override
+    public String toString() {
+        return "[Event headers = " + getHeaders() + ", body.length = " + body.length + " ]";
+    }
+
+    /**
+     * Map that reads from a shared map until it is modified, then works on its own copy. The views
+     * (entrySet, keySet, values) can modify the map, so they are taken from the copy.
+     */
+    static final class CopyOnWriteHeaders extends AbstractMap<String, String> {
+
+        private Map<String, String> map;
+        private boolean copied;
+
+        CopyOnWriteHeaders(Map<String, String> shared) {
+            this.map = shared;
+        }
+
+        private Map<String, String> own() {
+            if (!copied) {
+                map = new HashMap<String, String>(map);
+                copied = true;
+            }
+            return map;
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public String get(Object key) {
+            return map.get(key);
+        }
+
+        @Override
+        public String put(String key, String value) {
+            return own().put(key, value);
+        }
+
+        @Override
+        public String remove(Object key) {
+            // Sin copiar si la cabecera no esta
+            return map.containsKey(key) ? own().remove(key) : null;
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ? extends String> m) {
+            own().putAll(m);
+        }
+
+        @Override
+        public void clear() {
+            map = new HashMap<String, String>();
+            copied = true;
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            return map.containsValue(value);
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return own().entrySet();
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return own().keySet();
+        }
+
+        @Override
+        public Collection<String> values() {
+            return own().values();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return map.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return map.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return map.toString();
+        }
+    }
+}
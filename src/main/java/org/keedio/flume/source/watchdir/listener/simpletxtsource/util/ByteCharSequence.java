@@ -0,0 +1,144 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource.util;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reusable {@link CharSequence} view of encoded bytes, used to apply regular expressions and
+ * length checks to event bodies without creating a String for every one of them.
+ * <p>
+ * When the bytes are ASCII in an ASCII compatible charset (or any byte in ISO-8859-1) every byte
+ * is a char, and the bytes are read in place. Otherwise they are decoded into an internal char
+ * buffer that is reused between calls to {@link #reset(byte[], int, int)}.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class ByteCharSequence implements CharSequence {
+
+    private static final Map<Charset, Boolean> ASCII_COMPATIBLE = new ConcurrentHashMap<>();
+
+    private final Charset charset;
+    private final boolean latin1;
+    private final boolean asciiCompatible;
+    private final CharsetDecoder decoder;
+
+    private byte[] bytes = new byte[0];
+    private int offset;
+    private int length;
+    private boolean direct = true;
+    private CharBuffer chars = CharBuffer.allocate(0);
+
+    public ByteCharSequence(Charset charset) {
+        this.charset = charset;
+        this.latin1 = StandardCharsets.ISO_8859_1.equals(charset);
+        this.asciiCompatible = latin1 || isAsciiCompatible(charset);
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public ByteCharSequence reset(byte[] bytes) {
+        return reset(bytes, 0, bytes.length);
+    }
+
+    public ByteCharSequence reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.direct = latin1 || (asciiCompatible && isAscii(bytes, offset, length));
+
+        if (!direct) {
+            decode();
+        }
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return direct ? length : chars.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (direct) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+            return (char) (bytes[offset + index] & 0xff);
+        }
+        return chars.get(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return direct ? new String(bytes, offset, length, charset) : chars.toString();
+    }
+
+    private void decode() {
+        int maxChars = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < maxChars) {
+            chars = CharBuffer.allocate(maxChars);
+        }
+        // Como Buffer: compilado con JDK 9+ se enlazarian los metodos de CharBuffer, que no existen en Java 8
+        ((Buffer) chars).clear();
+
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(bytes, offset, length), chars, true);
+        decoder.flush(chars);
+        ((Buffer) chars).flip();
+    }
+
+    /**
+     * @return true if none of the bytes is greater than 0x7F
+     */
+    public static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the 128 ASCII chars are encoded in the charset as the byte with the same value
+     */
+    public static boolean isAsciiCompatible(Charset charset) {
+        Boolean compatible = ASCII_COMPATIBLE.get(charset);
+        if (compatible == null) {
+            compatible = encodesAsciiAsBytes(charset);
+            ASCII_COMPATIBLE.put(charset, compatible);
+        }
+        return compatible;
+    }
+
+    private static boolean encodesAsciiAsBytes(Charset charset) {
+        if (!charset.canEncode()) {
+            return false;
+        }
+        char[] ascii = new char[128];
+        byte[] expected = new byte[128];
+        for (int i = 0; i < 128; i++) {
+            ascii[i] = (char) i;
+            expected[i] = (byte) i;
+        }
+        return Arrays.equals(expected, new String(ascii).getBytes(charset));
+    }
+}
@@ -2,54 +2,36 @@ package org.keedio.flume.source.watchdir.listener.simpletxtsource.util;
 
 import org.apache.flume.Event;
 import org.apache.flume.channel.ChannelProcessor;
-import org.keedio.flume.source.watchdir.InodeInfo;
-import org.keedio.flume.source.watchdir.listener.simpletxtsource.exception.DuplicateInitializationException;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.exception.NotInitializedException;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
+ * Sends the events of a source to its channel processor. Every source has its own accessor, so
+ * several sources in the same agent do not share a processor nor a lock.
+ * <p>
+ * The calls are not serialized: the channel processor opens a transaction of the calling thread in
+ * every channel, so batches of different threads are put concurrently.
+ *
  * Created by luca on 29/09/16.
  */
 public class ChannelAccessor {
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelAccessor.class);
+    private final ChannelProcessor channelProcessor;
 
-
-    private ChannelProcessor channelProcessor;
-
-    private static ChannelAccessor instance;
-
-    public static void init(ChannelProcessor channelProcessor){
-        instance = new ChannelAccessor(channelProcessor);
-    }
-
-    public static ChannelAccessor getInstance(){
-        if (instance == null){
+    public ChannelAccessor(ChannelProcessor channelProcessor){
+        if (channelProcessor == null){
             throw new NotInitializedException();
-        } else {
-            return instance;
         }
-    }
-
-    private ChannelAccessor(ChannelProcessor channelProcessor){
         this.channelProcessor = channelProcessor;
     }
 
     public void sendEventToChannel(Event event){
-        synchronized (channelProcessor){
-            channelProcessor.processEvent(event);
-        }
+        channelProcessor.processEvent(event);
     }
 
     public void sendEventsToChannel(List<Event> events){
-        synchronized (channelProcessor){
-            channelProcessor.processEventBatch(events);
-        }
+        channelProcessor.processEventBatch(events);
     }
 
 }
@@ -0,0 +1,177 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.flume.Event;
+
+/**
+ * Bounded buffer of events with many producers (the threads reading files) and a single consumer
+ * (the thread sending them to the channel), without locks.
+ * <p>
+ * The producers reserve a slot of the active segment with an atomic increment and write the event
+ * in it. The consumer swaps the active segment with an empty one, so the producers continue in the
+ * new segment while the events of the old one are drained; every event reserved before the swap is
+ * drained, none is discarded. A drained segment stays closed: every swap installs a new segment
+ * (only its array of slots is reused), so a producer that still holds the old segment can not
+ * reserve a slot in it once it has been drained and put its event behind the later ones.
+ * <p>
+ * The bytes of the bodies are accounted too. The buffer can be bounded in bytes, an event that
+ * does not fit is refused unless the buffer is empty, so a single large event is always accepted.
+ * <p>
+ * {@link #drainTo(Collection)} must not be called concurrently, the caller serializes the consumers.
+ */
+public class EventBuffer {
+
+    // Esperas activas por un hueco reservado y no escrito antes de dormir el consumidor
+    private static final int MAX_SPINS = 64;
+    private static final long PARK_NANOS = 10000L;
+
+    private static final class Segment {
+        final AtomicReferenceArray<Event> slots;
+        final AtomicInteger reserved = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+
+        Segment(AtomicReferenceArray<Event> slots) {
+            this.slots = slots;
+        }
+    }
+
+    private final int capacity;
+    private final long byteCapacity;
+    private final AtomicReference<Segment> active;
+    // Solo lo usa el consumidor
+    private AtomicReferenceArray<Event> spareSlots;
+
+    /**
+     * @param capacity maximum number of events in the buffer
+     */
+    public EventBuffer(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param capacity     maximum number of events in the buffer
+     * @param byteCapacity maximum bytes of the bodies of the events in the buffer, 0 for no limit
+     */
+    public EventBuffer(int capacity, long byteCapacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+        this.byteCapacity = byteCapacity;
+        this.active = new AtomicReference<Segment>(new Segment(new AtomicReferenceArray<Event>(capacity)));
+        this.spareSlots = new AtomicReferenceArray<Event>(capacity);
+    }
+
+    /**
+     * Adds an event.
+     * @return false if the buffer is full, it has to be drained before adding more events
+     */
+    public boolean offer(Event event) {
+        if (event == null) {
+            throw new NullPointerException("event");
+        }
+        int length = bytes(event);
+        while (true) {
+            Segment segment = active.get();
+            // Sin incrementar si ya esta lleno, el contador no crece con los reintentos
+            if (segment.reserved.get() >= capacity || !fits(segment, length)) {
+                if (segment == active.get()) {
+                    return false;
+                }
+                continue;
+            }
+            int slot = segment.reserved.getAndIncrement();
+            if (slot < capacity) {
+                // Antes de publicar el evento: cuando el consumidor lo ve ya esta contado
+                segment.bytes.addAndGet(length);
+                segment.slots.lazySet(slot, event);
+                return true;
+            }
+            // Lleno, o el consumidor lo ha retirado entre medias y se reintenta en el nuevo
+            if (segment == active.get()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Moves every event in the buffer to the collection, in the order they were reserved.
+     * @return number of events moved
+     */
+    public int drainTo(Collection<Event> target) {
+        Segment segment = active.getAndSet(new Segment(spareSlots));
+        // Cerrado para siempre: las reservas a partir de ahora fallan y sus productores pasan al segmento activo
+        int reserved = Math.min(segment.reserved.getAndSet(capacity), capacity);
+
+        for (int i = 0; i < reserved; i++) {
+            target.add(awaitSlot(segment.slots, i));
+            segment.slots.lazySet(i, null);
+        }
+
+        // Todos los huecos reservados se han vaciado, nadie mas puede escribir en ellos
+        spareSlots = segment.slots;
+        return reserved;
+    }
+
+    /**
+     * The producer reserves the slot and writes the event right after, the consumer only waits if
+     * the producer was preempted in between: it spins a few times and then parks.
+     */
+    private static Event awaitSlot(AtomicReferenceArray<Event> slots, int i) {
+        Event event;
+        int spins = 0;
+        while ((event = slots.get(i)) == null) {
+            if (++spins < MAX_SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        return event;
+    }
+
+    /**
+     * @return number of events in the buffer, approximate while events are being added
+     */
+    public int size() {
+        return Math.min(active.get().reserved.get(), capacity);
+    }
+
+    /**
+     * @return bytes of the bodies of the events in the buffer, approximate while events are being added
+     */
+    public long bytes() {
+        return active.get().bytes.get();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getByteCapacity() {
+        return byteCapacity;
+    }
+
+    // Limite aproximado con productores concurrentes, un evento solo cabe siempre en un buffer vacio
+    private boolean fits(Segment segment, int length) {
+        return byteCapacity <= 0 || segment.reserved.get() == 0 || segment.bytes.get() + length <= byteCapacity;
+    }
+
+    /**
+     * @return bytes of the body of an event
+     */
+    public static int bytes(Event event) {
+        byte[] body = event.getBody();
+        return body == null ? 0 : body.length;
+    }
+}
@@ -132,6 +132,7 @@ public class WatchDirXMLWinEventSourceListener extends AbstractSource implements
 			Map<String, String> aux = (Map<String, String>)getCriterias.get(it.next());
 			WatchDirFileSet auxSet = new WatchDirFileSet(aux.get(DIR), globalWhiteList!=null?globalWhiteList:aux.get(WHITELIST), globalBlackList!=null?globalBlackList:aux.get(BLACKLIST), readOnStartUp, 
 					followLinks);
+			auxSet.configureObserver(aux);
 			props.put("tagName", aux.get(TAGNAME));
 			props.put("tagLevel", aux.get(TAGLEVEL));
 			
@@ -179,7 +180,7 @@ public class WatchDirXMLWinEventSourceListener extends AbstractSource implements
 			Iterator<WatchDirFileSet> it = fileSets.iterator();
 			
 			while(it.hasNext()) {
-				WatchDirObserver aux = new WatchDirObserver(it.next());
+				WatchDirObserver aux = WatchDirObserver.newObserver(it.next());
 				aux.addWatchDirListener(this);
 
 				Log.debug("Lanzamos el proceso");
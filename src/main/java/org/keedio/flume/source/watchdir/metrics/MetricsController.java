@@ -17,6 +17,7 @@ public class MetricsController extends MonitoredCounterGroup implements MetricsM
 	private Meter meterFiles;
 	private Histogram meanProcessTime;
 	private Histogram totalFileEvents;
+	private Meter meterChannelRetries;
 	private MetricRegistry metrics;	
 	
 	private static final String[] ATTRIBUTES = {
@@ -41,7 +42,8 @@ public class MetricsController extends MonitoredCounterGroup implements MetricsM
 			"source.75th.percentile.file.events",
 			"source.max.file.events",
 			"source.min.file.events",
-			"source.median.file.events"
+			"source.median.file.events",
+			"source.channel.retries"
 	};
 	
 	public MetricsController() {
@@ -52,6 +54,7 @@ public class MetricsController extends MonitoredCounterGroup implements MetricsM
 		meterFiles = metrics.meter("files");
 		meanProcessTime = metrics.histogram("meanProcessTime");
 		totalFileEvents = metrics.histogram("totalFileEvents");
+		meterChannelRetries = metrics.meter("channelRetries");
 	}
 
 	/**
@@ -75,6 +78,9 @@ public class MetricsController extends MonitoredCounterGroup implements MetricsM
 		case MetricsEvent.MEAN_FILE_PROCESS:
 			meanProcessTime.update(event.getValue());
 			break;
+		case MetricsEvent.CHANNEL_RETRY:
+			meterChannelRetries.mark();
+			break;
 		default:
 			throw new IllegalStateException();
 		}
@@ -191,4 +197,9 @@ public class MetricsController extends MonitoredCounterGroup implements MetricsM
 	public double getMedianFileEvents() {
 		return totalFileEvents.getSnapshot().getMedian();
 	}
+
+	@Override
+	public long getChannelRetries() {
+		return meterChannelRetries.getCount();
+	}
 }
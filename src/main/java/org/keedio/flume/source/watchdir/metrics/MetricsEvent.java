@@ -11,6 +11,7 @@ public class MetricsEvent {
 	public static final int NEW_FILE = 2;
 	public static final int MEAN_FILE_PROCESS = 3;
 	public static final int TOTAL_FILE_EVENTS = 4;
+	public static final int CHANNEL_RETRY = 5;
 	
 	private int code;
 	private long value = -1;
@@ -32,4 +32,6 @@ public interface MetricsMBean {
 	long getMaxFileEvents();
 	long getMinFileEvents();
 	double getMedianFileEvents();
+
+	long getChannelRetries();
 }
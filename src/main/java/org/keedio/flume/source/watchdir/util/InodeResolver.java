@@ -0,0 +1,208 @@
+package org.keedio.flume.source.watchdir.util;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.keedio.flume.source.watchdir.InodeTable;
+import org.keedio.flume.source.watchdir.WatchDirException;
+
+/**
+ * Resolves the device, inode, size and modification time of the observed paths with a single
+ * stat, reading the unix attributes directly when the platform has them.
+ * <p>
+ * The results are cached by path and kept up to date with the watch events: a create or delete
+ * forgets the path, its inode may have changed; a modify keeps the inode and only marks the size
+ * as stale. So a modify event finds the inode of its file without any syscall.
+ */
+public class InodeResolver {
+
+    private static final String UNIX_ATTRIBUTES = "unix:dev,ino,size,lastModifiedTime";
+    private static final int MAX_CACHED_PATHS = 10000;
+
+    // Si la plataforma no tiene la vista unix se usa la basica, se comprueba una sola vez
+    private static volatile boolean unixView = true;
+
+    /**
+     * Attributes of a file.
+     */
+    public static final class FileAttributes {
+        private final long dev;
+        private final long ino;
+        private final long size;
+        private final long lastModified;
+
+        public FileAttributes(long dev, long ino, long size, long lastModified) {
+            this.dev = dev;
+            this.ino = ino;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public long getDev() {
+            return dev;
+        }
+
+        public long getIno() {
+            return ino;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return identifier of the file, see {@link InodeTable#id(long, long)}
+         */
+        public String getInodeKey() {
+            return InodeTable.id(dev, ino);
+        }
+
+        @Override
+        public String toString() {
+            return "{\"dev\": " + dev + ", \"ino\": " + ino + ", \"size\": " + size + ", \"lastModified\": " + lastModified + "}";
+        }
+    }
+
+    private static final class Cached {
+        final String inodeKey;
+        FileAttributes attributes;
+
+        Cached(FileAttributes attributes) {
+            this.inodeKey = attributes.getInodeKey();
+            this.attributes = attributes;
+        }
+    }
+
+    private final Map<String, Cached> cache = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > MAX_CACHED_PATHS;
+        }
+    };
+
+    /**
+     * @return identifier of the file, from the cache if no create or delete was seen for the path
+     */
+    public String getInodeKey(String path) throws WatchDirException {
+        synchronized (cache) {
+            Cached cached = cache.get(path);
+            if (cached != null) {
+                return cached.inodeKey;
+            }
+        }
+        return getAttributes(path).getInodeKey();
+    }
+
+    /**
+     * @return the attributes of the file, they are read again if it was modified
+     */
+    public FileAttributes getAttributes(String path) throws WatchDirException {
+        synchronized (cache) {
+            Cached cached = cache.get(path);
+            if (cached != null && cached.attributes != null) {
+                return cached.attributes;
+            }
+        }
+
+        FileAttributes attributes = read(path);
+        synchronized (cache) {
+            Cached cached = cache.get(path);
+            if (cached != null && cached.inodeKey.equals(attributes.getInodeKey())) {
+                cached.attributes = attributes;
+            } else {
+                cache.put(path, new Cached(attributes));
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * The file was modified, its inode is the same but not its size.
+     */
+    public void modified(String path) {
+        synchronized (cache) {
+            Cached cached = cache.get(path);
+            if (cached != null) {
+                cached.attributes = null;
+            }
+        }
+    }
+
+    /**
+     * The path was created, deleted or renamed, it can be another file now.
+     */
+    public void invalidate(String path) {
+        synchronized (cache) {
+            cache.remove(path);
+        }
+    }
+
+    /**
+     * The path was deleted.
+     * @return identifier of the file that had the path, null if it was not in the cache
+     */
+    public String forget(String path) {
+        synchronized (cache) {
+            Cached cached = cache.remove(path);
+            return cached == null ? null : cached.inodeKey;
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Reads the attributes of a file with a single stat, without cache.
+     */
+    public static FileAttributes read(String file) throws WatchDirException {
+        Path path = Paths.get(file);
+
+        if (unixView) {
+            try {
+                Map<String, Object> attrs = Files.readAttributes(path, UNIX_ATTRIBUTES);
+                return new FileAttributes(((Number) attrs.get("dev")).longValue(), ((Number) attrs.get("ino")).longValue(),
+                        ((Number) attrs.get("size")).longValue(), ((FileTime) attrs.get("lastModifiedTime")).toMillis());
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                unixView = false;
+            } catch (Exception e) {
+                throw new WatchDirException(e.getMessage());
+            }
+        }
+
+        BasicFileAttributes attr;
+        try {
+            attr = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (Exception e) {
+            throw new WatchDirException(e.getMessage());
+        }
+
+        // (dev=803,ino=1234), el dispositivo en hexadecimal
+        String s = String.valueOf(attr.fileKey());
+        int devAt = s.indexOf("dev=");
+        int inoAt = s.indexOf("ino=");
+        if (inoAt < 0) {
+            throw new WatchDirException("Unable to get the inode of " + file + " from " + s);
+        }
+        try {
+            long dev = devAt < 0 ? 0 : Long.parseLong(s.substring(devAt + 4, s.indexOf(',', devAt)), 16);
+            long ino = Long.parseLong(s.substring(inoAt + 4, s.indexOf(')', inoAt)));
+            return new FileAttributes(dev, ino, attr.size(), attr.lastModifiedTime().toMillis());
+        } catch (RuntimeException e) {
+            throw new WatchDirException("Unable to get the inode of " + file + " from " + s);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.keedio.flume.source.watchdir.util;
 
 import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.InodeTable;
 import org.keedio.flume.source.watchdir.WatchDirException;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventHelper;
 import org.slf4j.Logger;
@@ -35,6 +36,13 @@ public class Util {
 
         return inode;
     }
+
+    /**
+     * @return identifier of the file made of its device and its inode, see {@link InodeTable#id(long, long)}
+     */
+    public static String getInodeKey(String file) throws WatchDirException {
+        return InodeResolver.read(file).getInodeKey();
+    }
     
     public static void printFilesObserved(Map<String, InodeInfo> files){
         if (files == null || files.size() == 0){
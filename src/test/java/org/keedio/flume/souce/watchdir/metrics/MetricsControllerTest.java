@@ -54,4 +54,17 @@ public class MetricsControllerTest {
 		Assert.assertTrue("Se ha manejado el evento de forma correcta", Math.abs(mc.getMeanFileEvents()-30)<1);
 	}
 
+	@Test
+	public void testManageChannelRetries() {
+		// Arrange
+		MetricsController mc = new MetricsController();
+		MetricsEvent ev = new MetricsEvent(MetricsEvent.CHANNEL_RETRY);
+
+		// Act
+		mc.manage(ev);
+
+		// Assert
+		Assert.assertEquals("Se ha manejado el evento de forma correcta", 1, mc.getChannelRetries());
+	}
+
 }
@@ -0,0 +1,441 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.channel.ChannelProcessor;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.ChannelAccessor;
+import org.keedio.flume.source.watchdir.metrics.MetricsController;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that files are tailed from the stored byte offset.
+ */
+public class FileEventHelperTailTest {
+
+    private static final String INODE = "1";
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private FileEventSourceListener listener;
+    private ChannelProcessor channelProcessor;
+    private FileEventHelper helper;
+    private Map<String, InodeInfo> filesObserved;
+    private File file;
+    private MetricsController metricsController;
+
+    @Before
+    public void setUp() throws Exception {
+        file = testFolder.newFile("tail.log");
+        filesObserved = new HashMap<>();
+
+        listener = mock(FileEventSourceListener.class);
+        when(listener.getFilesObserved()).thenReturn(filesObserved);
+        metricsController = new MetricsController();
+        when(listener.getMetricsController()).thenReturn(metricsController);
+        listener.maxchars = 100000;
+        listener.eventsCapacity = 1000;
+
+        channelProcessor = mock(ChannelProcessor.class);
+        helper = new FileEventHelper(listener, new ChannelAccessor(channelProcessor));
+    }
+
+    @Test
+    public void testReadOnlyAppendedBytes() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\nline 2\r\n", "UTF-8");
+        filesObserved.put(INODE, new InodeInfo(0L, file.getAbsolutePath()));
+
+        helper.process(INODE);
+
+        Assert.assertEquals(2, helper.getBuffer().size());
+        Assert.assertEquals("line 2", body(helper.getBuffer().get(1)));
+        Assert.assertEquals(file.length(), filesObserved.get(INODE).getPosition().longValue());
+
+        long completeLines = file.length();
+        FileUtils.writeStringToFile(file, "line 3\nhalf a li", "UTF-8", true);
+        helper.process(INODE);
+
+        Assert.assertEquals(3, helper.getBuffer().size());
+        Assert.assertEquals("line 3", body(helper.getBuffer().get(2)));
+        Assert.assertEquals(completeLines + 7, filesObserved.get(INODE).getPosition().longValue());
+
+        FileUtils.writeStringToFile(file, "ne\n", "UTF-8", true);
+        helper.process(INODE);
+
+        Assert.assertEquals(4, helper.getBuffer().size());
+        Assert.assertEquals("half a line", body(helper.getBuffer().get(3)));
+        Assert.assertEquals(file.length(), filesObserved.get(INODE).getPosition().longValue());
+    }
+
+    @Test
+    public void testMigrateLineCountPosition() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\nline 2\nline 3\n", "UTF-8");
+        InodeInfo info = new InodeInfo(2L, file.getAbsolutePath());
+        info.setByteOffset(false);
+        filesObserved.put(INODE, info);
+
+        helper.process(INODE);
+
+        Assert.assertTrue(info.isByteOffset());
+        Assert.assertEquals(1, helper.getBuffer().size());
+        Assert.assertEquals("line 3", body(helper.getBuffer().get(0)));
+        Assert.assertEquals(file.length(), info.getPosition().longValue());
+    }
+
+    @Test
+    public void testFlushWhileReading() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\nline 2\nline 3\nline 4\nline 5\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+        listener.eventsCapacity = 2;
+
+        helper.process(INODE);
+
+        // Two full batches are sent while reading, the last line waits for the next commit
+        verify(channelProcessor, times(2)).processEventBatch(anyListOf(Event.class));
+        Assert.assertEquals(1, helper.getBuffer().size());
+        Assert.assertEquals("line 5", body(helper.getBuffer().get(0)));
+        Assert.assertEquals(file.length(), info.getPosition().longValue());
+    }
+
+    @Test
+    public void testCommittedPositionFollowsChannel() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\nline 2\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        helper.process(INODE);
+
+        // Read but not delivered yet
+        Assert.assertEquals(file.length(), info.getPosition().longValue());
+        Assert.assertEquals(0L, info.getCommittedPosition().longValue());
+
+        helper.commitPendings();
+
+        Assert.assertEquals(file.length(), info.getCommittedPosition().longValue());
+        verify(listener).positionChanged(INODE, info);
+    }
+
+    @Test
+    public void testLostEventsAreReadAgain() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\nline 2\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        doThrow(new ChannelException("full")).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+        helper.process(INODE);
+        // Stopping, the batch rejected by the channel is not retried
+        helper.stopDelivery();
+        helper.commitPendings();
+
+        Assert.assertTrue(helper.getBuffer().isEmpty());
+        Assert.assertEquals(0L, info.getCommittedPosition().longValue());
+
+        // The next read starts again from the committed position
+        FileUtils.writeStringToFile(file, "line 3\n", "UTF-8", true);
+        helper.process(INODE);
+
+        Assert.assertEquals(3, helper.getBuffer().size());
+        Assert.assertEquals("line 1", body(helper.getBuffer().get(0)));
+    }
+
+    @Test
+    public void testEventNotBufferedWhileStopping() throws Exception {
+        // The buffer takes 16 bytes: the second line does not fit and has to flush the first one
+        listener.batchBytes = 8;
+        listener.maxchars = 30;
+        FileUtils.writeStringToFile(file, "line 1\nsecond line 012345\nthis line is discarded, it is too long\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        ChannelProcessor rejecting = mock(ChannelProcessor.class);
+        doThrow(new ChannelException("full")).when(rejecting).processEventBatch(anyListOf(Event.class));
+        FileEventHelper stopping = new FileEventHelper(listener, new ChannelAccessor(rejecting));
+        stopping.stopDelivery();
+        stopping.process(INODE);
+        Assert.assertEquals(0L, info.getCommittedPosition().longValue());
+
+        // Read again after restarting: the discarded last line is confirmed once every event is delivered
+        FileEventHelper restarted = new FileEventHelper(listener, new ChannelAccessor(channelProcessor));
+        restarted.process(INODE);
+        restarted.commitPendings();
+        restarted.process(INODE);
+        Assert.assertEquals(file.length(), info.getCommittedPosition().longValue());
+    }
+
+    @Test
+    public void testRejectedBatchRetried() throws Exception {
+        listener.backoffSleepIncrement = 10;
+        listener.maxBackoff = 20;
+        FileUtils.writeStringToFile(file, "line 1\nline 2\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        doThrow(new ChannelException("full")).doThrow(new ChannelException("full")).doNothing()
+                .when(channelProcessor).processEventBatch(anyListOf(Event.class));
+        helper.process(INODE);
+        helper.commitPendings();
+
+        verify(channelProcessor, times(3)).processEventBatch(anyListOf(Event.class));
+        verify(listener, times(0)).stop();
+        Assert.assertTrue(helper.getBuffer().isEmpty());
+        Assert.assertEquals(file.length(), info.getCommittedPosition().longValue());
+        Assert.assertEquals(2, metricsController.getChannelRetries());
+    }
+
+    @Test
+    public void testHelpersUseTheirOwnChannel() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\n", "UTF-8");
+        filesObserved.put(INODE, new InodeInfo(0L, file.getAbsolutePath()));
+
+        // A second source of the same agent, created after this one
+        ChannelProcessor otherProcessor = mock(ChannelProcessor.class);
+        FileEventHelper other = new FileEventHelper(listener, new ChannelAccessor(otherProcessor));
+
+        helper.process(INODE);
+        helper.commitPendings();
+        other.commitPendings();
+
+        verify(channelProcessor, times(1)).processEventBatch(anyListOf(Event.class));
+        verify(otherProcessor, times(0)).processEventBatch(anyListOf(Event.class));
+    }
+
+    @Test
+    public void testBatchBytes() throws Exception {
+        listener.batchBytes = 20;
+        FileUtils.writeStringToFile(file, "line 1\nline 2\nline 3\nline 4\nline 5\n", "UTF-8");
+        filesObserved.put(INODE, new InodeInfo(0L, file.getAbsolutePath()));
+
+        final List<Integer> batchBytes = new ArrayList<>();
+        doAnswer(invocation -> {
+            int bytes = 0;
+            for (Event event : (List<Event>) invocation.getArguments()[0]) {
+                bytes += event.getBody().length;
+            }
+            batchBytes.add(bytes);
+            return null;
+        }).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+
+        helper.process(INODE);
+        // Flushed when the buffer reached 20 bytes, in transactions of 20 bytes at most
+        Assert.assertEquals(Arrays.asList(18, 6), batchBytes);
+
+        helper.commitPendings();
+        Assert.assertEquals(Arrays.asList(18, 6, 6), batchBytes);
+    }
+
+    @Test
+    public void testAutocommitWithinMaxLatency() throws Exception {
+        when(listener.getHelper()).thenReturn(helper);
+        Thread autocommit = new Thread(new AutocommitThread(listener, 100, 60000));
+        autocommit.start();
+        try {
+            // A single line is sent after maxLatencyMillis, not after autocommittime
+            FileUtils.writeStringToFile(file, "line 1\n", "UTF-8");
+            filesObserved.put(INODE, new InodeInfo(0L, file.getAbsolutePath()));
+            helper.process(INODE);
+            verify(channelProcessor, timeout(5000).times(1)).processEventBatch(anyListOf(Event.class));
+        } finally {
+            autocommit.interrupt();
+            autocommit.join();
+        }
+    }
+
+    @Test
+    public void testAutocommitWokenByFlushTarget() throws Exception {
+        when(listener.getHelper()).thenReturn(helper);
+        helper.setFlushTarget(2);
+        Thread autocommit = new Thread(new AutocommitThread(listener, 60000, 60000));
+        autocommit.start();
+        try {
+            FileUtils.writeStringToFile(file, "line 1\nline 2\nline 3\n", "UTF-8");
+            filesObserved.put(INODE, new InodeInfo(0L, file.getAbsolutePath()));
+            helper.process(INODE);
+            verify(channelProcessor, timeout(5000).atLeastOnce()).processEventBatch(anyListOf(Event.class));
+        } finally {
+            autocommit.interrupt();
+            autocommit.join();
+        }
+    }
+
+    @Test
+    public void testHeadersSharedUntilModifiedOrRenamed() throws Exception {
+        listener.fileHeader = true;
+        listener.fileHeaderName = "file";
+        listener.baseHeader = true;
+        listener.baseHeaderName = "basename";
+        FileUtils.writeStringToFile(file, "line 1\nline 2\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        helper.process(INODE);
+        Event first = helper.getBuffer().get(0);
+        Event second = helper.getBuffer().get(1);
+        Assert.assertEquals(file.getAbsolutePath(), second.getHeaders().get("file"));
+        Assert.assertEquals("tail.log", second.getHeaders().get("basename"));
+
+        // Modifying the headers of an event does not change the other events of the file
+        first.getHeaders().put("extra", "1");
+        first.getHeaders().remove("basename");
+        Assert.assertEquals(2, first.getHeaders().size());
+        Assert.assertNull(second.getHeaders().get("extra"));
+        Assert.assertEquals("tail.log", second.getHeaders().get("basename"));
+
+        // The views of the headers modify them too, as the map of any other event
+        Iterator<Map.Entry<String, String>> it = second.getHeaders().entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey().equals("file")) {
+                it.remove();
+            }
+        }
+        second.getHeaders().entrySet().iterator().next().setValue("changed");
+        second.getHeaders().keySet().removeIf("extra"::equals);
+        Assert.assertEquals(Collections.singletonMap("basename", "changed"), second.getHeaders());
+
+        FileUtils.writeStringToFile(file, "line 2b\n", "UTF-8", true);
+        helper.process(INODE);
+        Event next = helper.getBuffer().get(2);
+        Assert.assertEquals(file.getAbsolutePath(), next.getHeaders().get("file"));
+        Assert.assertEquals("tail.log", next.getHeaders().get("basename"));
+
+        File renamed = new File(testFolder.getRoot(), "tail.log.1");
+        Assert.assertTrue(file.renameTo(renamed));
+        info.setFileName(renamed.getAbsolutePath());
+        FileUtils.writeStringToFile(renamed, "line 3\n", "UTF-8", true);
+        helper.process(INODE);
+
+        Event third = helper.getBuffer().get(3);
+        Assert.assertEquals(renamed.getAbsolutePath(), third.getHeaders().get("file"));
+        Assert.assertEquals("tail.log.1", third.getHeaders().get("basename"));
+    }
+
+    @Test
+    public void testFileGone() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        helper.process(INODE);
+        Assert.assertEquals(1, helper.getBuffer().size());
+
+        // Deleted with its channel open: the lines written before the delete are read
+        FileUtils.writeStringToFile(file, "line 2\n", "UTF-8", true);
+        Assert.assertTrue(file.delete());
+        helper.process(INODE);
+        Assert.assertEquals(2, helper.getBuffer().size());
+        Assert.assertEquals("line 2", body(helper.getBuffer().get(1)));
+
+        // Without channel the file can not be opened, nothing is read
+        helper.closeInode(INODE);
+        helper.process(INODE);
+        Assert.assertEquals(2, helper.getBuffer().size());
+        Assert.assertEquals(14, info.getPosition().longValue());
+    }
+
+    @Test
+    public void testCopyTruncate() throws Exception {
+        FileUtils.writeStringToFile(file, "line 1\nline 2\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        helper.process(INODE);
+        Assert.assertEquals(2, helper.getBuffer().size());
+
+        // logrotate copytruncate: same inode, smaller file
+        FileUtils.writeStringToFile(file, "new\n", "UTF-8");
+        helper.process(INODE);
+
+        Assert.assertEquals(3, helper.getBuffer().size());
+        Assert.assertEquals("new", body(helper.getBuffer().get(2)));
+        Assert.assertEquals(file.length(), info.getPosition().longValue());
+    }
+
+    @Test
+    public void testFingerprintChanged() throws Exception {
+        listener.fingerprintBytes = 8;
+        FileUtils.writeStringToFile(file, "aaaa\nbbbb\n", "UTF-8");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        filesObserved.put(INODE, info);
+
+        helper.process(INODE);
+        Assert.assertEquals(8, info.getFingerprintLength());
+
+        // Truncated and written again while the source was stopped, it is not smaller than the
+        // position: the fingerprint is checked on the first read after opening the file
+        FileUtils.writeStringToFile(file, "cccc\ndddd\neeee\n", "UTF-8");
+        helper.closeInode(INODE);
+        helper.process(INODE);
+
+        Assert.assertEquals(5, helper.getBuffer().size());
+        Assert.assertEquals("cccc", body(helper.getBuffer().get(2)));
+        Assert.assertEquals(file.length(), info.getPosition().longValue());
+    }
+
+    @Test
+    public void testMultilineJoinedBytes() throws Exception {
+        FileUtils.writeStringToFile(file, "java.lang.Exception: año\n  at a\n  at b\nnext\n", "UTF-8");
+        filesObserved.put(INODE, new InodeInfo(0L, file.getAbsolutePath()));
+        listener.multilineActive = true;
+        listener.patternMultilineRegex = Pattern.compile("(^.+Exception: .+)|(^\\s+at .+)");
+        listener.multilineAssignToPreviousLine = true;
+        listener.multilineEventLineSeparator = "\n";
+
+        List<String> sent = new ArrayList<>();
+        doAnswer(invocation -> {
+            for (Event event : (List<Event>) invocation.getArguments()[0]) {
+                sent.add(body(event));
+            }
+            return null;
+        }).when(channelProcessor).processEventBatch(anyListOf(Event.class));
+
+        helper.process(INODE);
+        helper.commitPendings();
+
+        Assert.assertEquals(Arrays.asList("java.lang.Exception: año\n  at a\n  at b", "next"), sent);
+    }
+
+    @Test
+    public void testTranscodeToOutputCharset() throws Exception {
+        FileUtils.writeStringToFile(file, "plain ascii\ncanción\n", "ISO-8859-1");
+        InodeInfo info = new InodeInfo(0L, file.getAbsolutePath());
+        info.setCharset(StandardCharsets.ISO_8859_1);
+        filesObserved.put(INODE, info);
+        listener.outputCharset = StandardCharsets.UTF_8;
+        helper = new FileEventHelper(listener, new ChannelAccessor(channelProcessor));
+
+        helper.process(INODE);
+
+        Assert.assertEquals("plain ascii", body(helper.getBuffer().get(0)));
+        Assert.assertEquals("canción", body(helper.getBuffer().get(1)));
+    }
+
+    private static String body(Event event) {
+        return new String(event.getBody(), StandardCharsets.UTF_8);
+    }
+}
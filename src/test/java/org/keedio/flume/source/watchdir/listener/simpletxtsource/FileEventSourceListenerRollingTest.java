@@ -21,7 +21,6 @@ import org.keedio.flume.source.watchdir.listener.LineReadListener;
 import org.keedio.flume.source.watchdir.listener.fake.FakeListener;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventHelper;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventSourceListener;
-import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.ChannelAccessor;
 import org.mockito.Mock;
 
 import java.io.*;
@@ -106,8 +105,7 @@ public class FileEventSourceListenerRollingTest {
         rcs.setChannels(Lists.newArrayList(channel));
 
         ChannelProcessor channelProcessor = new ChannelProcessor(rcs);
-        ChannelAccessor.init(channelProcessor);
-        
+
         listener.setChannelProcessor(channelProcessor);
         listener.configure(context);
         listener.helper = new FileEventHelper(listener);
@@ -7,21 +7,28 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.keedio.flume.source.watchdir.CleanRemovedEventsProcessingThread;
 import org.keedio.flume.source.watchdir.InodeInfo;
 import org.keedio.flume.source.watchdir.WatchDirEvent;
 import org.keedio.flume.source.watchdir.WatchDirException;
 import org.keedio.flume.source.watchdir.WatchDirFileSet;
+import org.keedio.flume.source.watchdir.metrics.MetricsController;
+import org.keedio.flume.source.watchdir.util.InodeResolver;
 import org.mockito.Mockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.mockito.BDDMockito.given;
@@ -51,8 +58,8 @@ public class FileEventSourceListenerStaticTest {
         Path tmpFile1 = Files.createTempFile("testInitWithInconsistentObservedFileMap", "");
 
 
-        given(org.keedio.flume.source.watchdir.util.Util.getInodeID(tmpFile0.toFile().getAbsolutePath())).willReturn("1269");
-        given(org.keedio.flume.source.watchdir.util.Util.getInodeID(tmpFile1.toFile().getAbsolutePath())).willReturn("1274");
+        given(org.keedio.flume.source.watchdir.util.Util.getInodeKey(tmpFile0.toFile().getAbsolutePath())).willReturn("1269");
+        given(org.keedio.flume.source.watchdir.util.Util.getInodeKey(tmpFile1.toFile().getAbsolutePath())).willReturn("1274");
         
         Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
 
@@ -98,11 +105,11 @@ public class FileEventSourceListenerStaticTest {
 
     @Test
     public void testRenameEventDifferentInode() throws WatchDirException {
-        mockStatic(org.keedio.flume.source.watchdir.util.Util.class);
+        InodeResolver resolver = mock(InodeResolver.class);
         
-        given(org.keedio.flume.source.watchdir.util.Util.getInodeID(errorFile)).willReturn("269");
-        given(org.keedio.flume.source.watchdir.util.Util.getInodeID(accessFile)).willReturn("274");
-        given(org.keedio.flume.source.watchdir.util.Util.getInodeID(accessFileRenamed)).willReturn("273");
+        given(resolver.getInodeKey(errorFile)).willReturn("269");
+        given(resolver.getInodeKey(accessFile)).willReturn("274");
+        given(resolver.getInodeKey(accessFileRenamed)).willReturn("273");
 
 
         WatchDirFileSet watchDirFileSet = mock(WatchDirFileSet.class);
@@ -115,6 +122,7 @@ public class FileEventSourceListenerStaticTest {
         given(event.getSet()).willReturn(watchDirFileSet);
 
         FileEventSourceListener listener = new FileEventSourceListener();
+        listener.resolver = resolver;
 
         Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
 
@@ -162,8 +170,8 @@ public class FileEventSourceListenerStaticTest {
      */
     @Test
     public void testRenameEventSameInode() throws WatchDirException {
-        mockStatic(org.keedio.flume.source.watchdir.util.Util.class);
-        given(org.keedio.flume.source.watchdir.util.Util.getInodeID(anyString())).willReturn("269");
+        InodeResolver resolver = mock(InodeResolver.class);
+        given(resolver.getInodeKey(anyString())).willReturn("269");
 
         WatchDirFileSet watchDirFileSet = mock(WatchDirFileSet.class);
         given(watchDirFileSet.haveToProccess(errorFile)).willReturn(false);
@@ -175,6 +183,7 @@ public class FileEventSourceListenerStaticTest {
         given(event.getSet()).willReturn(watchDirFileSet);
         
         FileEventSourceListener listener = new FileEventSourceListener();
+        listener.resolver = resolver;
 
         Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
         
@@ -203,4 +212,226 @@ public class FileEventSourceListenerStaticTest {
         Mockito.verify(mockHelper, times(1)).process("269");
         assertTrue(mockFilesObserved.containsKey("269"));
     }
+
+    /**
+     * Tests the create events sent for files already observed when the directory is rescanned
+     * after an overflow: only the files that grew are read.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCreateEventObservedFileGrew() throws Exception {
+        InodeResolver resolver = spy(new InodeResolver());
+
+        Path grown = Files.createTempFile("testCreateEventObservedFileGrew", "");
+        Path unchanged = Files.createTempFile("testCreateEventObservedFileGrew", "");
+        Files.write(grown, "line 1\nline 2\n".getBytes("UTF-8"));
+        Files.write(unchanged, "line 1\n".getBytes("UTF-8"));
+        String grownPath = grown.toFile().getAbsolutePath();
+        String unchangedPath = unchanged.toFile().getAbsolutePath();
+
+        doReturn("300").when(resolver).getInodeKey(grownPath);
+        doReturn("301").when(resolver).getInodeKey(unchangedPath);
+
+        WatchDirFileSet watchDirFileSet = mock(WatchDirFileSet.class);
+        given(watchDirFileSet.haveToProccess(anyString())).willReturn(true);
+        given(watchDirFileSet.getCharset()).willReturn(StandardCharsets.ISO_8859_1);
+
+        FileEventSourceListener listener = new FileEventSourceListener();
+        listener.resolver = resolver;
+        Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
+        mockFilesObserved.put("300", new InodeInfo(7L, grownPath));
+        mockFilesObserved.put("301", new InodeInfo(7L, unchangedPath));
+        listener.filesObserved = mockFilesObserved;
+
+        FileEventHelper mockHelper = mock(FileEventHelper.class);
+        listener.helper = mockHelper;
+
+        for (String path : new String[]{grownPath, unchangedPath}) {
+            WatchDirEvent event = mock(WatchDirEvent.class);
+            given(event.getPath()).willReturn(path);
+            given(event.getType()).willReturn("ENTRY_CREATE");
+            given(event.getSet()).willReturn(watchDirFileSet);
+            listener.process(event);
+        }
+
+        Mockito.verify(mockHelper, times(1)).process("300");
+        Mockito.verify(mockHelper, times(0)).process("301");
+        assertTrue(mockFilesObserved.containsKey("300"));
+        assertTrue(mockFilesObserved.containsKey("301"));
+        // El charset restaurado del checkpoint es el del directorio, no el de la JVM
+        assertEquals(StandardCharsets.ISO_8859_1, mockFilesObserved.get("300").getCharset());
+
+        Files.delete(grown);
+        Files.delete(unchanged);
+    }
+
+    /**
+     * Tests the create events of a rescan for files not observed: without readonstartup they are
+     * read from their current size, the content they had may have been there before the overflow.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRescanCreateEventUnknownFile() throws Exception {
+        Path existing = Files.createTempFile("testRescanCreateEventUnknownFile", "");
+        Files.write(existing, "line 1\nline 2\n".getBytes("UTF-8"));
+        String existingPath = existing.toFile().getAbsolutePath();
+
+        FileEventSourceListener listener = new FileEventSourceListener();
+        Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
+        listener.filesObserved = mockFilesObserved;
+        listener.helper = mock(FileEventHelper.class);
+        Whitebox.setInternalState(listener, "metricsController", new MetricsController());
+        String inode = listener.resolver.getInodeKey(existingPath);
+
+        WatchDirFileSet watchDirFileSet = mock(WatchDirFileSet.class);
+        given(watchDirFileSet.haveToProccess(anyString())).willReturn(true);
+        given(watchDirFileSet.isReadOnStartup()).willReturn(false);
+
+        listener.process(new WatchDirEvent(existingPath, "ENTRY_CREATE", watchDirFileSet, true));
+        assertEquals(14L, (long) mockFilesObserved.get(inode).getPosition());
+
+        // With readonstartup, or for a create event of the watch service, the file is read from the beginning
+        mockFilesObserved.clear();
+        given(watchDirFileSet.isReadOnStartup()).willReturn(true);
+        listener.process(new WatchDirEvent(existingPath, "ENTRY_CREATE", watchDirFileSet, true));
+        assertEquals(0L, (long) mockFilesObserved.get(inode).getPosition());
+
+        mockFilesObserved.clear();
+        given(watchDirFileSet.isReadOnStartup()).willReturn(false);
+        listener.process(new WatchDirEvent(existingPath, "ENTRY_CREATE", watchDirFileSet));
+        assertEquals(0L, (long) mockFilesObserved.get(inode).getPosition());
+
+        Files.delete(existing);
+    }
+
+    /**
+     * Tests that the delete event of an observed file removes it, and that a file renamed after
+     * the delete event is not removed.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeleteEventRemovesInode() throws Exception {
+        Path deleted = Files.createTempFile("testDeleteEventRemovesInode", "");
+        Path renamed = Files.createTempFile("testDeleteEventRemovesInode", "");
+        String deletedPath = deleted.toFile().getAbsolutePath();
+        String renamedPath = renamed.toFile().getAbsolutePath();
+
+        FileEventSourceListener listener = new FileEventSourceListener();
+        Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
+        listener.filesObserved = mockFilesObserved;
+        FileEventHelper mockHelper = mock(FileEventHelper.class);
+        listener.helper = mockHelper;
+
+        String deletedInode = listener.resolver.getInodeKey(deletedPath);
+        String renamedInode = listener.resolver.getInodeKey(renamedPath);
+        mockFilesObserved.put(deletedInode, new InodeInfo(0L, deletedPath));
+        mockFilesObserved.put(renamedInode, new InodeInfo(0L, renamedPath));
+
+        listener.cleaner = new CleanRemovedEventsProcessingThread(listener, 0, 0);
+
+        WatchDirFileSet watchDirFileSet = mock(WatchDirFileSet.class);
+        given(watchDirFileSet.haveToProccess(anyString())).willReturn(true);
+
+        Files.delete(deleted);
+        Path target = Paths.get(renamedPath + ".1");
+        Files.move(renamed, target);
+        for (String path : new String[]{deletedPath, renamedPath}) {
+            WatchDirEvent event = mock(WatchDirEvent.class);
+            given(event.getPath()).willReturn(path);
+            given(event.getType()).willReturn("ENTRY_DELETE");
+            given(event.getSet()).willReturn(watchDirFileSet);
+            listener.process(event);
+        }
+        mockFilesObserved.get(renamedInode).setFileName(target.toFile().getAbsolutePath());
+
+        assertEquals(1, listener.cleaner.processDeleted());
+        assertFalse(mockFilesObserved.containsKey(deletedInode));
+        assertTrue(mockFilesObserved.containsKey(renamedInode));
+        Mockito.verify(mockHelper, times(1)).closeInode(deletedInode);
+
+        Files.delete(target);
+        assertEquals(1, listener.cleaner.sweep());
+        assertTrue(mockFilesObserved.isEmpty());
+    }
+
+    /**
+     * Tests that a deleted file is forgotten after the read of its inode already running.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeletedInodeForgottenAfterPendingRead() throws Exception {
+        Path deleted = Files.createTempFile("testDeletedInodeForgottenAfterPendingRead", "");
+        String deletedPath = deleted.toFile().getAbsolutePath();
+
+        FileEventSourceListener listener = new FileEventSourceListener();
+        Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
+        listener.filesObserved = mockFilesObserved;
+        FileEventHelper mockHelper = mock(FileEventHelper.class);
+        listener.helper = mockHelper;
+        InodeWorkerPool workers = new InodeWorkerPool(2);
+        Whitebox.setInternalState(listener, "workers", workers);
+
+        String inode = listener.resolver.getInodeKey(deletedPath);
+        mockFilesObserved.put(inode, new InodeInfo(0L, deletedPath));
+        listener.cleaner = new CleanRemovedEventsProcessingThread(listener, 0, 0);
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        workers.submit(inode, new Runnable() {
+            @Override
+            public void run() {
+                reading.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        Files.delete(deleted);
+        listener.cleaner.fileDeleted(deletedPath, inode);
+        assertEquals(1, listener.cleaner.processDeleted());
+
+        // The channel is not closed while the inode is being read
+        Mockito.verify(mockHelper, times(0)).closeInode(inode);
+        assertTrue(mockFilesObserved.containsKey(inode));
+
+        release.countDown();
+        workers.shutdown(5000);
+        Mockito.verify(mockHelper, times(1)).closeInode(inode);
+        assertFalse(mockFilesObserved.containsKey(inode));
+    }
+
+    @Test
+    public void testStartupCleanupRecordedInJournal() throws Exception {
+        Path existing = Files.createTempFile("testStartupCleanupRecordedInJournal", "");
+        String existingPath = existing.toFile().getAbsolutePath();
+
+        FileEventSourceListener listener = new FileEventSourceListener();
+        Map<String, InodeInfo> mockFilesObserved = new HashMap<>();
+        listener.filesObserved = mockFilesObserved;
+        SerializeFilesThread mockSerializer = mock(SerializeFilesThread.class);
+        listener.ser = mockSerializer;
+
+        String existingInode = listener.resolver.getInodeKey(existingPath);
+        InodeInfo missing = new InodeInfo(0L, existingPath + ".missing");
+        mockFilesObserved.put("293", missing);
+        mockFilesObserved.put(existingInode, new InodeInfo(0L, existingPath));
+
+        new CleanRemovedEventsProcessingThread(listener, 0, 0);
+
+        // Removed through the listener, the checkpoint does not restore it again
+        assertFalse(mockFilesObserved.containsKey("293"));
+        assertTrue(missing.isRemoved());
+        Mockito.verify(mockSerializer, times(1)).inodeRemoved("293");
+        assertTrue(mockFilesObserved.containsKey(existingInode));
+
+        Files.delete(existing);
+    }
 }
@@ -0,0 +1,118 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.util.DirectBufferPool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class FileTailReaderTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void testLinesSplitBetweenReads() throws Exception {
+        File file = testFolder.newFile("split.log");
+        FileUtils.writeStringToFile(file, "first line\r\nsecond\n\nthird line is longer\nlast", "UTF-8");
+
+        // Tiny buffers force lines to be split between several reads
+        FileTailReader reader = new FileTailReader(new DirectBufferPool(4, 1));
+        List<String> lines = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+
+        long position = reader.readLines("1", file.getAbsolutePath(), 0L, (line, next) -> {
+            lines.add(new String(line, "UTF-8"));
+            offsets.add(next);
+        });
+
+        Assert.assertEquals(java.util.Arrays.asList("first line", "second", "", "third line is longer"), lines);
+        Assert.assertEquals(java.util.Arrays.asList(12L, 19L, 20L, 41L), offsets);
+        Assert.assertEquals(41L, position);
+
+        reader.closeAll();
+    }
+
+    @Test
+    public void testChannelKeptOpenBetweenReads() throws Exception {
+        File file = testFolder.newFile("open.log");
+        FileUtils.writeStringToFile(file, "a\n", "UTF-8");
+
+        FileTailReader reader = new FileTailReader();
+        List<String> lines = new ArrayList<>();
+
+        long position = reader.readLines("1", file.getAbsolutePath(), 0L, (line, next) -> lines.add(new String(line)));
+        Assert.assertEquals(1, reader.getOpenChannels());
+
+        FileUtils.writeStringToFile(file, "b\n", "UTF-8", true);
+        position = reader.readLines("1", file.getAbsolutePath(), position, (line, next) -> lines.add(new String(line)));
+
+        Assert.assertEquals(java.util.Arrays.asList("a", "b"), lines);
+        Assert.assertEquals(4L, position);
+        Assert.assertEquals(1, reader.getOpenChannels());
+
+        reader.retain(Collections.singleton("2"));
+        Assert.assertEquals(0, reader.getOpenChannels());
+    }
+
+    @Test
+    public void testOpenChannelsBounded() throws Exception {
+        FileTailReader reader = new FileTailReader(2);
+        List<String> lines = new ArrayList<>();
+        String[] paths = new String[3];
+        for (int i = 0; i < paths.length; i++) {
+            File file = testFolder.newFile("bounded" + i + ".log");
+            FileUtils.writeStringToFile(file, "line" + i + "\n", "UTF-8");
+            paths[i] = file.getAbsolutePath();
+        }
+
+        reader.readLines("0", paths[0], 0L, (line, next) -> lines.add(new String(line)));
+        reader.readLines("1", paths[1], 0L, (line, next) -> lines.add(new String(line)));
+        reader.readLines("0", paths[0], 0L, (line, next) -> lines.add(new String(line)));
+        reader.readLines("2", paths[2], 0L, (line, next) -> lines.add(new String(line)));
+
+        // Se cierra el que lleva mas tiempo sin leerse
+        Assert.assertEquals(2, reader.getOpenChannels());
+        Assert.assertTrue(reader.isOpen("0"));
+        Assert.assertFalse(reader.isOpen("1"));
+        Assert.assertTrue(reader.isOpen("2"));
+
+        // Se abre otra vez en la siguiente lectura
+        Assert.assertEquals(6L, reader.readLines("1", paths[1], 0L, (line, next) -> lines.add(new String(line))));
+        Assert.assertEquals(java.util.Arrays.asList("line0", "line1", "line0", "line2", "line1"), lines);
+        Assert.assertEquals(2, reader.getOpenChannels());
+
+        reader.closeIdle(0);
+        Assert.assertEquals(0, reader.getOpenChannels());
+    }
+
+    @Test
+    public void testChannelBeingReadClosedAfterRead() throws Exception {
+        File first = testFolder.newFile("reading.log");
+        FileUtils.writeStringToFile(first, "a\nb\n", "UTF-8");
+        File second = testFolder.newFile("other.log");
+        FileUtils.writeStringToFile(second, "c\n", "UTF-8");
+        FileTailReader reader = new FileTailReader(new DirectBufferPool(2, 1), 1);
+        List<String> lines = new ArrayList<>();
+
+        // Mientras se lee el primero se abre otro fichero y se supera el maximo
+        long position = reader.readLines("1", first.getAbsolutePath(), 0L, (line, next) -> {
+            lines.add(new String(line));
+            if (lines.size() == 1) {
+                reader.readLines("2", second.getAbsolutePath(), 0L, (other, n) -> lines.add(new String(other)));
+            }
+        });
+
+        Assert.assertEquals(java.util.Arrays.asList("a", "c", "b"), lines);
+        Assert.assertEquals(4L, position);
+        Assert.assertFalse(reader.isOpen("1"));
+        Assert.assertTrue(reader.isOpen("2"));
+        reader.closeAll();
+    }
+}
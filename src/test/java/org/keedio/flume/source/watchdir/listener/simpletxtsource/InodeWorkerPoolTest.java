@@ -0,0 +1,102 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class InodeWorkerPoolTest {
+
+    private InodeWorkerPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new InodeWorkerPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown(1000);
+    }
+
+    @Test
+    public void testTasksOfSameInodeRunInOrder() throws Exception {
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+
+        for (int i = 0; i < 100; i++) {
+            final int task = i;
+            pool.submit("1", new Runnable() {
+                @Override
+                public void run() {
+                    executed.add(task);
+                    done.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i, executed.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testSlowInodeDoesNotBlockOthers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+
+        pool.submit("1", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        pool.submit("2", new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+
+        // The second inode is read while the first one is still blocked
+        Assert.assertTrue(other.await(5, TimeUnit.SECONDS));
+        // The second inode leaves the pending ones when its worker polls again, after the task
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getPendingInodes() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, pool.getPendingInodes());
+        release.countDown();
+    }
+
+    @Test
+    public void testInodeReadAfterTaskError() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        pool.submit("1", new Runnable() {
+            @Override
+            public void run() {
+                throw new StackOverflowError();
+            }
+        });
+        pool.submit("1", new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
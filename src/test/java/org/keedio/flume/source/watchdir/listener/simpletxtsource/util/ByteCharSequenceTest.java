@@ -0,0 +1,59 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+public class ByteCharSequenceTest {
+
+    @Test
+    public void testAsciiBytesReadInPlace() {
+        ByteCharSequence view = new ByteCharSequence(StandardCharsets.UTF_8);
+        byte[] bytes = "java.lang.IllegalStateException: boom".getBytes(StandardCharsets.UTF_8);
+
+        view.reset(bytes);
+
+        Assert.assertEquals(bytes.length, view.length());
+        Assert.assertEquals("java.lang.IllegalStateException: boom", view.toString());
+        Assert.assertTrue(Pattern.compile("(^.+Exception: .+)").matcher(view).matches());
+    }
+
+    @Test
+    public void testMultibyteCharsDecoded() {
+        ByteCharSequence view = new ByteCharSequence(StandardCharsets.UTF_8);
+        byte[] bytes = "año ñandú".getBytes(StandardCharsets.UTF_8);
+
+        view.reset(bytes);
+
+        Assert.assertEquals(9, view.length());
+        Assert.assertEquals('ñ', view.charAt(1));
+        Assert.assertEquals("año ñandú", view.toString());
+
+        // The view is reusable with shorter and ASCII content
+        view.reset("abc".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(3, view.length());
+        Assert.assertEquals("abc", view.toString());
+    }
+
+    @Test
+    public void testLatin1HighBytes() {
+        Charset latin1 = StandardCharsets.ISO_8859_1;
+        ByteCharSequence view = new ByteCharSequence(latin1);
+
+        view.reset("canción".getBytes(latin1));
+
+        Assert.assertEquals(7, view.length());
+        Assert.assertEquals('ó', view.charAt(5));
+        Assert.assertEquals("canción", view.toString());
+    }
+
+    @Test
+    public void testAsciiCompatibleCharsets() {
+        Assert.assertTrue(ByteCharSequence.isAsciiCompatible(StandardCharsets.UTF_8));
+        Assert.assertTrue(ByteCharSequence.isAsciiCompatible(StandardCharsets.US_ASCII));
+        Assert.assertFalse(ByteCharSequence.isAsciiCompatible(StandardCharsets.UTF_16));
+    }
+}
@@ -0,0 +1,165 @@
+package org.keedio.flume.source.watchdir.listener.simpletxtsource.util;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class EventBufferTest {
+
+    @Test
+    public void testBoundedAndDrainedInOrder() {
+        EventBuffer buffer = new EventBuffer(3);
+
+        Assert.assertTrue(buffer.offer(event(0, 0)));
+        Assert.assertTrue(buffer.offer(event(0, 1)));
+        Assert.assertTrue(buffer.offer(event(0, 2)));
+        Assert.assertFalse(buffer.offer(event(0, 3)));
+        Assert.assertEquals(3, buffer.size());
+
+        List<Event> drained = new ArrayList<Event>();
+        Assert.assertEquals(3, buffer.drainTo(drained));
+        Assert.assertTrue(buffer.isEmpty());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i, ByteBuffer.wrap(drained.get(i).getBody()).getInt(4));
+        }
+
+        // The segments are reused after the drain
+        Assert.assertTrue(buffer.offer(event(0, 3)));
+        drained.clear();
+        Assert.assertEquals(1, buffer.drainTo(drained));
+        Assert.assertEquals(0, buffer.drainTo(drained));
+    }
+
+    @Test
+    public void testByteCapacity() {
+        EventBuffer buffer = new EventBuffer(10, 20);
+
+        Assert.assertTrue(buffer.offer(event(0, 0)));
+        Assert.assertTrue(buffer.offer(event(0, 1)));
+        Assert.assertEquals(16, buffer.bytes());
+        Assert.assertFalse(buffer.offer(event(0, 2)));
+
+        buffer.drainTo(new ArrayList<Event>());
+        Assert.assertEquals(0, buffer.bytes());
+
+        // An event larger than the limit fits in an empty buffer
+        Assert.assertTrue(buffer.offer(EventBuilder.withBody(new byte[30])));
+        Assert.assertFalse(buffer.offer(event(0, 3)));
+    }
+
+    /**
+     * Several producers add events while the consumer drains them: every event is drained once
+     * and the events of each producer keep their order.
+     */
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int events = 20000;
+        final EventBuffer buffer = new EventBuffer(64);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < events; i++) {
+                            Event event = event(producer, i);
+                            while (!buffer.offer(event)) {
+                                Thread.yield();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        failed.set(true);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        int[] next = new int[producers];
+        List<Event> drained = new ArrayList<Event>();
+        while (done.getCount() > 0 || !buffer.isEmpty()) {
+            drained.clear();
+            buffer.drainTo(drained);
+            for (Event event : drained) {
+                ByteBuffer body = ByteBuffer.wrap(event.getBody());
+                int producer = body.getInt(0);
+                Assert.assertEquals(next[producer]++, body.getInt(4));
+            }
+        }
+
+        Assert.assertFalse(failed.get());
+        for (int p = 0; p < producers; p++) {
+            Assert.assertEquals(events, next[p]);
+        }
+    }
+
+    /**
+     * A tiny buffer drained continuously, so the producers often reserve slots while the segments
+     * are swapped: no event is lost and the events of each producer keep their order. The producers
+     * retry without yielding, so they are preempted between reading the active segment and
+     * reserving a slot in it.
+     */
+    @Test
+    public void testOrderAcrossManyDrains() throws Exception {
+        final int producers = 4;
+        final int events = 200;
+        final EventBuffer buffer = new EventBuffer(4);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < events && !stop.get(); i++) {
+                            Event event = event(producer, i);
+                            while (!buffer.offer(event) && !stop.get()) {
+                                // Reintento sin ceder el procesador
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        int[] next = new int[producers];
+        List<Event> drained = new ArrayList<Event>();
+        try {
+            while (done.getCount() > 0 || !buffer.isEmpty()) {
+                drained.clear();
+                buffer.drainTo(drained);
+                for (Event event : drained) {
+                    ByteBuffer body = ByteBuffer.wrap(event.getBody());
+                    int producer = body.getInt(0);
+                    Assert.assertEquals("order of producer " + producer, next[producer]++, body.getInt(4));
+                }
+            }
+        } finally {
+            stop.set(true);
+        }
+
+        for (int p = 0; p < producers; p++) {
+            Assert.assertEquals(events, next[p]);
+        }
+    }
+
+    private static Event event(int producer, int sequence) {
+        return EventBuilder.withBody(ByteBuffer.allocate(8).putInt(producer).putInt(sequence).array());
+    }
+}
@@ -0,0 +1,63 @@
+package org.keedio.flume.source.watchdir.txt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.keedio.flume.source.watchdir.CoalescingWatchDirListener;
+import org.keedio.flume.source.watchdir.WatchDirEvent;
+import org.keedio.flume.source.watchdir.WatchDirException;
+import org.keedio.flume.source.watchdir.WatchDirListener;
+
+public class CoalescingWatchDirListenerTest {
+
+	private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+
+	private final WatchDirListener recorder = new WatchDirListener() {
+		@Override
+		public void process(WatchDirEvent event) throws WatchDirException {
+			delivered.add(event.getType() + " " + event.getPath());
+		}
+	};
+
+	private CoalescingWatchDirListener dispatcher;
+
+	@After
+	public void tearDown() {
+		dispatcher.close();
+	}
+
+	@Test
+	public void testModifyBurstIsDeliveredOnce() throws Exception {
+		dispatcher = new CoalescingWatchDirListener(recorder, 200);
+
+		for (int i = 0; i < 1000; i++) {
+			dispatcher.process(new WatchDirEvent("/tmp/a.log", "ENTRY_MODIFY", null));
+			dispatcher.process(new WatchDirEvent("/tmp/b.log", "ENTRY_MODIFY", null));
+		}
+		Assert.assertTrue(delivered.isEmpty());
+
+		Thread.sleep(1000);
+
+		Assert.assertEquals(2, delivered.size());
+		Assert.assertTrue(delivered.contains("ENTRY_MODIFY /tmp/a.log"));
+		Assert.assertTrue(delivered.contains("ENTRY_MODIFY /tmp/b.log"));
+		Assert.assertEquals(1998, dispatcher.getCoalesced());
+	}
+
+	@Test
+	public void testOtherEventDeliversPendingModifyFirst() throws Exception {
+		dispatcher = new CoalescingWatchDirListener(recorder, 60000);
+
+		dispatcher.process(new WatchDirEvent("/tmp/a.log", "ENTRY_MODIFY", null));
+		dispatcher.process(new WatchDirEvent("/tmp/a.log", "ENTRY_DELETE", null));
+
+		Assert.assertEquals(2, delivered.size());
+		Assert.assertEquals("ENTRY_MODIFY /tmp/a.log", delivered.get(0));
+		Assert.assertEquals("ENTRY_DELETE /tmp/a.log", delivered.get(1));
+	}
+
+}
@@ -0,0 +1,55 @@
+package org.keedio.flume.source.watchdir.txt;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.keedio.flume.source.watchdir.util.InodeResolver;
+import org.keedio.flume.source.watchdir.util.Util;
+
+public class InodeResolverTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testAttributes() throws Exception {
+		File file = folder.newFile("app.log");
+		FileUtils.writeStringToFile(file, "line 1\n", "UTF-8");
+
+		InodeResolver.FileAttributes attributes = InodeResolver.read(file.getAbsolutePath());
+		Assert.assertEquals(7, attributes.getSize());
+		Assert.assertEquals(Util.getInodeKey(file.getAbsolutePath()), attributes.getInodeKey());
+		Assert.assertTrue(attributes.getInodeKey().endsWith(Util.getInodeID(file.getAbsolutePath())));
+	}
+
+	@Test
+	public void testCacheFollowsEvents() throws Exception {
+		File file = folder.newFile("app.log");
+		String path = file.getAbsolutePath();
+		FileUtils.writeStringToFile(file, "line 1\n", "UTF-8");
+
+		InodeResolver resolver = new InodeResolver();
+		String inode = resolver.getInodeKey(path);
+		Assert.assertEquals(7, resolver.getAttributes(path).getSize());
+
+		// Modificado: mismo inodo, el tamaño se vuelve a leer
+		FileUtils.writeStringToFile(file, "line 2\n", "UTF-8", true);
+		resolver.modified(path);
+		Assert.assertEquals(inode, resolver.getInodeKey(path));
+		Assert.assertEquals(14, resolver.getAttributes(path).getSize());
+
+		// Rotado: otro fichero con el mismo nombre
+		File other = folder.newFile("other.log");
+		Assert.assertTrue(file.delete());
+		Assert.assertTrue(other.renameTo(file));
+		Assert.assertEquals(inode, resolver.getInodeKey(path));
+		resolver.invalidate(path);
+		Assert.assertNotEquals(inode, resolver.getInodeKey(path));
+		Assert.assertEquals(0, resolver.getAttributes(path).getSize());
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.keedio.flume.source.watchdir.txt;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.InodeTable;
+
+public class InodeTableTest {
+
+	@Test
+	public void testPutGetRemove() {
+		InodeTable table = new InodeTable();
+		Map<String, InodeInfo> expected = new HashMap<>();
+
+		// Suficientes entradas para redimensionar y colisionar
+		for (long ino = 1; ino <= 5000; ino++) {
+			InodeInfo info = new InodeInfo(ino, "/var/log/" + ino);
+			table.put(ino % 3, ino, info);
+			expected.put(InodeTable.id(ino % 3, ino), info);
+		}
+		Assert.assertEquals(5000, table.size());
+
+		for (long ino = 1; ino <= 5000; ino += 2) {
+			Assert.assertNotNull(table.remove(ino % 3, ino));
+			expected.remove(InodeTable.id(ino % 3, ino));
+		}
+
+		Assert.assertEquals(expected.size(), table.size());
+		for (Map.Entry<String, InodeInfo> e : expected.entrySet()) {
+			Assert.assertSame(e.getValue(), table.get(e.getKey()));
+		}
+		Assert.assertNull(table.get(1, 1));
+		Assert.assertEquals(expected, new HashMap<>(table));
+	}
+
+	@Test
+	public void testSameInodeOnDifferentDevices() {
+		InodeTable table = new InodeTable();
+		InodeInfo a = new InodeInfo(0L, "/mnt/a/app.log");
+		InodeInfo b = new InodeInfo(0L, "/mnt/b/app.log");
+		table.put("2049:1234", a);
+		table.put("2050:1234", b);
+
+		Assert.assertEquals(2, table.size());
+		Assert.assertSame(a, table.get("2049:1234"));
+		Assert.assertSame(b, table.get("2050:1234"));
+	}
+
+	@Test
+	public void testEntryWithoutDevice() {
+		InodeTable table = new InodeTable();
+		InodeInfo info = new InodeInfo(42L, "/var/log/app.log");
+		// Checkpoint de versiones anteriores, sin dispositivo
+		table.put("1234", info);
+
+		Assert.assertSame(info, table.get(2049, 1234));
+		Assert.assertEquals("2049:1234", table.keySet().iterator().next());
+		Assert.assertTrue(InodeTable.sameInode("1234", "2049:1234"));
+		Assert.assertFalse(InodeTable.sameInode("2050:1234", "2049:1234"));
+	}
+
+	@Test
+	public void testPutWithDeviceReplacesEntryWithoutDevice() {
+		InodeTable table = new InodeTable();
+		InodeInfo legacy = new InodeInfo(42L, "/var/log/app.log");
+		InodeInfo current = new InodeInfo(84L, "/var/log/app.log");
+		// Checkpoint sin dispositivo y registro del journal con dispositivo
+		table.put("1234", legacy);
+		table.put(0, 99, new InodeInfo(0L, "/var/log/other.log"));
+
+		Assert.assertSame(legacy, table.put("2049:1234", current));
+		Assert.assertEquals(2, table.size());
+		Assert.assertSame(current, table.get(2049, 1234));
+		Assert.assertNotNull(table.get("99"));
+	}
+
+	@Test
+	public void testRemoveWhileIterating() {
+		InodeTable table = new InodeTable();
+		for (long ino = 1; ino <= 100; ino++) {
+			table.put(0, ino, new InodeInfo(0L, "/var/log/" + ino));
+		}
+		for (Iterator<String> it = table.keySet().iterator(); it.hasNext();) {
+			if (InodeTable.ino(it.next()) % 2 == 0) {
+				it.remove();
+			}
+		}
+		Assert.assertEquals(50, table.size());
+		Assert.assertNull(table.get("2"));
+		Assert.assertNotNull(table.get("3"));
+	}
+
+}
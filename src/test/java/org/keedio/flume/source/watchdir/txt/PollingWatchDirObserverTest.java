@@ -0,0 +1,94 @@
+package org.keedio.flume.source.watchdir.txt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.keedio.flume.source.watchdir.PollingWatchDirObserver;
+import org.keedio.flume.source.watchdir.WatchDirEvent;
+import org.keedio.flume.source.watchdir.WatchDirException;
+import org.keedio.flume.source.watchdir.WatchDirFileSet;
+import org.keedio.flume.source.watchdir.WatchDirListener;
+import org.keedio.flume.source.watchdir.WatchDirObserver;
+
+public class PollingWatchDirObserverTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+	private File dir;
+	private Thread thread;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder("polled");
+		FileUtils.writeStringToFile(new File(dir, "existing.log"), "line\n", "UTF-8");
+
+		WatchDirFileSet set = new WatchDirFileSet(dir.getAbsolutePath(), "", "", false, false);
+		set.setObserver(WatchDirFileSet.OBSERVER_POLL);
+		set.setPollMinInterval(20);
+		set.setPollMaxInterval(100);
+
+		WatchDirObserver observer = WatchDirObserver.newObserver(set);
+		Assert.assertTrue(observer instanceof PollingWatchDirObserver);
+
+		observer.addWatchDirListener(new WatchDirListener() {
+			@Override
+			public void process(WatchDirEvent event) throws WatchDirException {
+				events.add(event.getType() + " " + new File(event.getPath()).getName());
+			}
+		});
+		thread = new Thread(observer);
+		thread.setDaemon(true);
+		thread.start();
+		Thread.sleep(200);
+	}
+
+	@After
+	public void tearDown() {
+		thread.interrupt();
+	}
+
+	@Test
+	public void testExistingFilesDoNotGenerateEvents() throws Exception {
+		Thread.sleep(300);
+		Assert.assertTrue(events.isEmpty());
+	}
+
+	@Test
+	public void testCreateModifyRenameDelete() throws Exception {
+		File log = new File(dir, "app.log");
+		FileUtils.writeStringToFile(log, "line 1\n", "UTF-8");
+		awaitEvent("ENTRY_CREATE app.log");
+
+		FileUtils.writeStringToFile(log, "line 1\nline 2\n", "UTF-8");
+		awaitEvent("ENTRY_MODIFY app.log");
+
+		// Rotado: el fichero se renombra y se crea otro con el mismo nombre
+		Assert.assertTrue(log.renameTo(new File(dir, "app.log.1")));
+		FileUtils.writeStringToFile(log, "new\n", "UTF-8");
+		awaitEvent("ENTRY_CREATE app.log.1");
+		awaitEvent("ENTRY_CREATE app.log");
+
+		Assert.assertTrue(new File(dir, "app.log.1").delete());
+		awaitEvent("ENTRY_DELETE app.log.1");
+	}
+
+	private void awaitEvent(String expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!events.contains(expected) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Assert.assertTrue("Event not received: " + expected + " in " + events, events.contains(expected));
+	}
+
+}
@@ -1,7 +1,10 @@
 package org.keedio.flume.source.watchdir.txt;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Map;
@@ -10,6 +13,8 @@ import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.keedio.flume.source.watchdir.InodeInfo;
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.CheckpointFormat;
+import org.keedio.flume.source.watchdir.listener.simpletxtsource.FsyncPolicy;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.FileEventSourceListener;
 import org.keedio.flume.source.watchdir.listener.simpletxtsource.SerializeFilesThread;
 import org.mockito.Mock;
@@ -59,4 +64,149 @@ public class SerializeFilesThreadTest {
 	    
 	  }
 	
+	@Test
+	public void testConvertLegacySerFile() throws Exception {
+		Map<String, InodeInfo> map = new HashMap<>();
+		map.put("1234", new InodeInfo(42L, "/var/log/app.log"));
+
+		// Fichero escrito por versiones anteriores
+		try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("/tmp/test-legacy.ser"))) {
+			oos.writeObject(map);
+		}
+
+		SerializeFilesThread ser = new SerializeFilesThread(listener, "/tmp/test-legacy.ser", 5);
+		Map<String, InodeInfo> aux = ser.getMapFromSerFile();
+		Assert.assertEquals(42L, aux.get("1234").getPosition().longValue());
+
+		when(listener.getFilesObserved()).thenReturn(aux);
+		ser.fromMapToSerFile();
+
+		Assert.assertFalse(CheckpointFormat.isLegacy(new File("/tmp/test-legacy.ser")));
+		Map<String, InodeInfo> converted = ser.getMapFromSerFile();
+		Assert.assertEquals(42L, converted.get("1234").getPosition().longValue());
+		Assert.assertEquals("/var/log/app.log", converted.get("1234").getFileName());
+		Assert.assertTrue(converted.get("1234").isByteOffset());
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptCheckpoint() throws Exception {
+		Map<String, InodeInfo> map = new HashMap<>();
+		map.put("1234", new InodeInfo(42L, "/var/log/app.log"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CheckpointFormat.write(map, out);
+		byte[] bytes = out.toByteArray();
+		bytes[bytes.length - 20] ^= 1;
+
+		CheckpointFormat.read(new ByteArrayInputStream(bytes));
+	}
+
+	@Test
+	public void testJournalReplay() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "journaltest-" + System.nanoTime());
+		Assert.assertTrue(dir.mkdirs());
+		String path = new File(dir, "test.ser").getAbsolutePath();
+
+		Map<String, InodeInfo> map = new HashMap<>();
+		map.put("1", new InodeInfo(10L, "/var/log/a.log"));
+		map.put("2", new InodeInfo(20L, "/var/log/b.log"));
+		when(listener.getFilesObserved()).thenReturn(map);
+
+		SerializeFilesThread ser = new SerializeFilesThread(listener, path, 5);
+		ser.fromMapToSerFile();
+
+		// Cambios posteriores al checkpoint, solo en el journal
+		ser.positionChanged("1", new InodeInfo(15L, "/var/log/a.log"));
+		ser.inodeRemoved("2");
+		ser.positionChanged("3", new InodeInfo(30L, "/var/log/c.log"));
+
+		Map<String, InodeInfo> recovered = new SerializeFilesThread(listener, path, 5).getMapFromSerFile();
+		Assert.assertEquals(15L, recovered.get("1").getPosition().longValue());
+		Assert.assertFalse(recovered.containsKey("2"));
+		Assert.assertEquals("/var/log/c.log", recovered.get("3").getFileName());
+
+		// Tras compactar solo queda el checkpoint
+		when(listener.getFilesObserved()).thenReturn(recovered);
+		ser.fromMapToSerFile();
+		Assert.assertArrayEquals(new String[]{"test.ser"}, dir.list());
+
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testAtomicWrite() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "atomictest-" + System.nanoTime());
+		Assert.assertTrue(dir.mkdirs());
+		String path = new File(dir, "test.ser").getAbsolutePath();
+
+		Map<String, InodeInfo> map = new HashMap<>();
+		map.put("1", new InodeInfo(10L, "/var/log/a.log"));
+		when(listener.getFilesObserved()).thenReturn(map);
+
+		SerializeFilesThread ser = new SerializeFilesThread(listener, path, 5);
+		ser.setFsyncPolicy(FsyncPolicy.ALWAYS, 0);
+		ser.fromMapToSerFile();
+		map.get("1").setCommittedPosition(11L);
+		ser.positionChanged("1", map.get("1"));
+		ser.fromMapToSerFile();
+
+		// Solo queda el checkpoint, sin temporales ni copias de backup
+		Assert.assertArrayEquals(new String[]{"test.ser"}, dir.list());
+		Assert.assertEquals(11L, ser.getMapFromSerFile().get("1").getPosition().longValue());
+
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testCheckpointOnlyWhenChanged() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "dirtytest-" + System.nanoTime());
+		Assert.assertTrue(dir.mkdirs());
+		File file = new File(dir, "test.ser");
+
+		Map<String, InodeInfo> map = new HashMap<>();
+		map.put("1", new InodeInfo(10L, "/var/log/a.log"));
+		map.put("2", new InodeInfo(20L, "/var/log/b.log"));
+		when(listener.getFilesObserved()).thenReturn(map);
+
+		SerializeFilesThread ser = new SerializeFilesThread(listener, file.getAbsolutePath(), 5);
+		ser.checkpoint();
+		Assert.assertTrue(file.setLastModified(0));
+
+		// Sin cambios no se escribe nada
+		ser.checkpoint();
+		Assert.assertEquals(0, file.lastModified());
+
+		// Pocos cambios, se quedan en el journal
+		map.get("1").setCommittedPosition(11L);
+		ser.positionChanged("1", map.get("1"));
+		ser.checkpoint();
+		Assert.assertEquals(0, file.lastModified());
+		Assert.assertEquals(11L, new SerializeFilesThread(listener, file.getAbsolutePath(), 5).getMapFromSerFile().get("1").getPosition().longValue());
+
+		// El journal ya es tan grande como el checkpoint, se compacta
+		map.get("2").setCommittedPosition(21L);
+		ser.positionChanged("2", map.get("2"));
+		ser.checkpoint();
+		Assert.assertNotEquals(0, file.lastModified());
+		Assert.assertArrayEquals(new String[]{"test.ser"}, dir.list());
+
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void testFingerprintSaved() throws Exception {
+		Map<String, InodeInfo> map = new HashMap<>();
+		InodeInfo info = new InodeInfo(42L, "/var/log/app.log");
+		info.setFingerprint(123456L, 1024);
+		map.put("2049:1234", info);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CheckpointFormat.write(map, out);
+		InodeInfo read = CheckpointFormat.read(new ByteArrayInputStream(out.toByteArray())).get("2049:1234");
+
+		Assert.assertEquals(42L, read.getPosition().longValue());
+		Assert.assertEquals(123456L, read.getFingerprint());
+		Assert.assertEquals(1024, read.getFingerprintLength());
+	}
+
 }
@@ -0,0 +1,62 @@
+package org.keedio.flume.source.watchdir.txt;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.keedio.flume.source.watchdir.WatchDirFileSet;
+import org.keedio.flume.source.watchdir.WatchDirPatterns;
+
+public class WatchDirPatternsTest {
+
+	@Test
+	public void testJoinedPatterns() {
+		WatchDirPatterns patterns = WatchDirPatterns.compile("\\.xml,\\.filepart,(.*)\\.log");
+
+		Assert.assertTrue(patterns.matches("/tmp/prueba.xml"));
+		Assert.assertTrue(patterns.matches("/tmp/prueba.filepart"));
+		Assert.assertTrue(patterns.matches("/tmp/prueba.log"));
+		Assert.assertFalse(patterns.matches("/tmp/prueba.log.1"));
+		Assert.assertFalse(patterns.matches("/tmp/prueba.xml.swx"));
+	}
+
+	@Test
+	public void testBackReferences() {
+		WatchDirPatterns patterns = WatchDirPatterns.compile("\\.swx,(a)\\1\\.log");
+
+		Assert.assertTrue(patterns.matches("/tmp/aa.log"));
+		Assert.assertTrue(patterns.matches("/tmp/b.swx"));
+		Assert.assertFalse(patterns.matches("/tmp/ab.log"));
+	}
+
+	@Test
+	public void testTopLevelAlternation() {
+		// As separate patterns, only the last alternative is anchored at the end
+		WatchDirPatterns patterns = WatchDirPatterns.compile("access|error\\.log,\\.xml");
+
+		Assert.assertTrue(patterns.matches("/var/log/access_log.2016-08-14"));
+		Assert.assertTrue(patterns.matches("/var/log/error.log"));
+		Assert.assertTrue(patterns.matches("/var/log/events.xml"));
+		Assert.assertFalse(patterns.matches("/var/log/error.log.1"));
+
+		// Alternations inside groups or classes are anchored as a whole
+		patterns = WatchDirPatterns.compile("(access|error)\\.log,[|]\\.xml,\\Qa|b\\E");
+		Assert.assertTrue(patterns.matches("/var/log/access.log"));
+		Assert.assertFalse(patterns.matches("/var/log/access.log.1"));
+		Assert.assertTrue(patterns.matches("/var/log/|.xml"));
+		Assert.assertFalse(patterns.matches("/var/log/a.xml"));
+		Assert.assertTrue(patterns.matches("/var/log/a|b"));
+		Assert.assertFalse(patterns.matches("/var/log/a.1"));
+	}
+
+	@Test
+	public void testDecisionChangesWithLists() {
+		WatchDirFileSet set = new WatchDirFileSet("", "\\.log", "", false, false);
+
+		Assert.assertTrue(set.haveToProccess("/tmp/app.log"));
+		Assert.assertFalse(set.haveToProccess("/tmp/app.txt"));
+
+		set.setWhitelist("\\.txt");
+		Assert.assertFalse(set.haveToProccess("/tmp/app.log"));
+		Assert.assertTrue(set.haveToProccess("/tmp/app.txt"));
+	}
+
+}